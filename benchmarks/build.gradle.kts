@@ -0,0 +1,56 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.6.8"
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_15
+    targetCompatibility = JavaVersion.VERSION_15
+}
+
+group = "moe.mewore.web"
+version = "0.0.1-SNAPSHOT"
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    jmhAnnotationProcessor("org.projectlombok:lombok:1.18.24")
+    jmhCompileOnly("org.projectlombok:lombok:1.18.24")
+    jmhCompileOnly("org.checkerframework:checker-qual:3.25.0")
+    jmh(project(":imagediary"))
+    jmh(project(":rabbit-generator"))
+}
+
+jmh {
+    jmhVersion.set("1.35")
+    // Some benchmarks are in the packages of the classes they measure so that they can access their internals
+    jvmArgsAppend.add("-Drabbit.template=" + project(":rabbitpage").projectDir.resolve("template/index.html").path)
+    profilers.add("gc")
+    // Kept as JSON so that the results of different versions can be compared, e.g. with https://jmh.morethan.io
+    resultFormat.set("JSON")
+    resultsFile.set(project.layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+tasks.create<JavaExec>("loadTestRabbitServer") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("moe.mewore.web.rabbit.generator.RabbitServerLoadTest")
+    args = listOf(project(":rabbitpage").projectDir.resolve("template").path)
+}
+
+val checkThumbnailScaler = tasks.create<JavaExec>("checkThumbnailScaler") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("moe.mewore.imagediary.ThumbnailScalerParityCheck")
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+val checkThumbnailIndex = tasks.create<JavaExec>("checkThumbnailIndex") {
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("moe.mewore.imagediary.ThumbnailIndexCheck")
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+tasks.named("check") {
+    dependsOn(checkThumbnailScaler, checkThumbnailIndex)
+}
@@ -0,0 +1,138 @@
+package moe.mewore.imagediary;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Writes a synthetic image diary location: one directory per day with rabbit drawings and event notes named the way
+ * the real diary names them. The contents are determined by the seed so that every run measures the same files.
+ */
+public class DiaryFixture {
+
+    private static final LocalDate FIRST_DAY = LocalDate.of(2000, 1, 1);
+
+    private final Random random;
+
+    private final int imageWidth;
+
+    private final int imageHeight;
+
+    /**
+     * @param imageWidth  The approximate width of the drawings.
+     * @param imageHeight The approximate height of the drawings.
+     */
+    public DiaryFixture(final long seed, final int imageWidth, final int imageHeight) {
+        random = new Random(seed);
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: DiaryFixture <target directory> <day count> [images per day]");
+            System.exit(1);
+        }
+        final int imagesPerDay = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        final File location = new File(args[0]);
+        new DiaryFixture(42L, 600, 800).write(location, Integer.parseInt(args[1]), imagesPerDay);
+        System.out.println("Wrote a diary of " + args[1] + " days into " + location.getAbsolutePath());
+    }
+
+    public static File createTempLocation() throws IOException {
+        return Files.createTempDirectory("image-diary-fixture").toFile();
+    }
+
+    /**
+     * Writes the days into the location. The hours of the images and notes of every day are random.
+     *
+     * @param imagesPerDay The number of drawings in every day. About a fifth as many days have a note.
+     */
+    public void write(final File location, final int dayCount, final int imagesPerDay) throws IOException {
+        for (int i = 0; i < dayCount; i++) {
+            final LocalDate date = FIRST_DAY.plusDays(i);
+            final File dayDirectory = new File(location, date.toString());
+            Files.createDirectories(dayDirectory.toPath());
+            int imageMask = 0;
+            while (Integer.bitCount(imageMask) < Math.min(imagesPerDay, 24)) {
+                imageMask |= 1 << random.nextInt(24);
+            }
+            for (int hour = 0; hour < 24; hour++) {
+                if ((imageMask & (1 << hour)) != 0) {
+                    ImageIO.write(drawRabbit(), "png", new File(dayDirectory, "rabbit-" + date + "-" + hour + ".png"));
+                }
+                if (random.nextInt(24 * 5) < imagesPerDay) {
+                    Files.writeString(new File(dayDirectory, "event-" + date + "-" + hour + ".txt").toPath(),
+                            "Something \"important\" happened at " + hour + " o'clock on " + date);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A drawing with a few filled shapes and strokes on a transparent background, which compresses about as
+     * well as a real drawing does.
+     */
+    private BufferedImage drawRabbit() {
+        final int width = imageWidth - imageWidth / 8 + random.nextInt(imageWidth / 4 + 1);
+        final int height = imageHeight - imageHeight / 8 + random.nextInt(imageHeight / 4 + 1);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(new Color(random.nextInt(0x1000000)));
+            graphics.fillOval(width / 4, height / 3, width / 2, height / 2);
+            graphics.fillOval(width / 3, height / 8, width / 8, height / 4);
+            graphics.fillOval(width / 2, height / 8, width / 8, height / 4);
+            graphics.setStroke(new BasicStroke(Math.max(1, width / 100)));
+            for (int i = 0; i < 20; i++) {
+                graphics.setColor(new Color(random.nextInt(), true));
+                graphics.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width),
+                        random.nextInt(height));
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    public static void delete(final File location) {
+        try {
+            Files.walkFileTree(location.toPath(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+                        throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(final Path directory, final IOException e)
+                        throws IOException {
+                    Files.delete(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Failed to delete the diary fixture " + location, e);
+        }
+    }
+
+    public static BufferedImage readImage(final File file) throws IOException {
+        return ImageIO.read(file);
+    }
+
+    public static String readText(final File file) throws IOException {
+        return Files.readString(file.toPath());
+    }
+}
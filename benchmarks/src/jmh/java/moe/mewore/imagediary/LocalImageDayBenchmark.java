@@ -0,0 +1,92 @@
+package moe.mewore.imagediary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures refreshing a single day with drawings in it. A cold refresh decodes every drawing and draws the thumbnail;
+ * a warm one is what a new instance does when the index of its location already knows the day.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LocalImageDayBenchmark {
+
+    @Param({"1", "6", "24"})
+    private int imageCount;
+
+    private File location;
+
+    private File dayDirectory;
+
+    private DiaryIndex warmIndex;
+
+    private LocalImageDay refreshedDay;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The days log every thumbnail they save
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        location = DiaryFixture.createTempLocation();
+        new DiaryFixture(42L, 600, 800).write(location, 1, imageCount);
+        dayDirectory = Objects.requireNonNull(location.listFiles(LocalImageDay::isDayDirectory))[0];
+        warmIndex = DiaryIndex.load(location);
+        refreshedDay = createDay(warmIndex);
+        refreshedDay.createThumbnailFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        DiaryFixture.delete(location);
+    }
+
+    private LocalImageDay createDay(final DiaryIndex index) {
+        return new LocalImageDay(dayDirectory, DiaryFixture::readImage, DiaryFixture::readText, index,
+                LocalImageDiaryOptions.builder().build(), () -> {
+        });
+    }
+
+    @Benchmark
+    public LocalImageDay refreshCold() {
+        final LocalImageDay day = createDay(DiaryIndex.load(location));
+        day.refresh();
+        return day;
+    }
+
+    @Benchmark
+    public LocalImageDay refreshWarm() {
+        final LocalImageDay day = createDay(warmIndex);
+        day.refresh();
+        return day;
+    }
+
+    @Benchmark
+    public int getImageMask() {
+        return refreshedDay.getImageMask();
+    }
+
+    @Benchmark
+    public byte[] getThumbnailData() {
+        return refreshedDay.getThumbnailData();
+    }
+}
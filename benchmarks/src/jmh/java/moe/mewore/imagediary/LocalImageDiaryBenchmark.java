@@ -0,0 +1,96 @@
+package moe.mewore.imagediary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures listing a diary location with many days in it and grouping them by month. The days themselves are not
+ * refreshed, so every day has only a single small drawing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LocalImageDiaryBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int dayCount;
+
+    private File location;
+
+    private LocalImageDiary refreshedDiary;
+
+    private String middleMonth;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The diary logs every directory it finds
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        location = DiaryFixture.createTempLocation();
+        new DiaryFixture(42L, 32, 32).write(location, dayCount, 1);
+        refreshedDiary = createDiary();
+        refreshedDiary.refresh();
+        // The images of every month are counted only the first time
+        refreshedDiary.getMonthIndex();
+        middleMonth = refreshedDiary.getDaysByMonthReversed().get(dayCount / 60).getKey();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        refreshedDiary.close();
+        DiaryFixture.delete(location);
+    }
+
+    private LocalImageDiary createDiary() {
+        return new LocalImageDiary(new File[]{location}, DiaryFixture::readImage, DiaryFixture::readText);
+    }
+
+    @Benchmark
+    public LocalImageDiary refresh() {
+        final LocalImageDiary diary = createDiary();
+        diary.refresh();
+        return diary;
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, List<ImageDay>>> getDaysByMonthReversed() {
+        return refreshedDiary.getDaysByMonthReversed();
+    }
+
+    @Benchmark
+    public List<ImageDay> getDaysReversed() {
+        return refreshedDiary.getDaysReversed();
+    }
+
+    @Benchmark
+    public List<ImageDay> getDaysInMonthReversed() {
+        return refreshedDiary.getDaysInMonthReversed(middleMonth);
+    }
+
+    @Benchmark
+    public int countImagesAroundMonth() {
+        final MonthIndex monthIndex = refreshedDiary.getMonthIndex();
+        return monthIndex.getImageCountBefore(middleMonth) + monthIndex.getImageCount(middleMonth) +
+                monthIndex.getImageCountAfter(middleMonth);
+    }
+}
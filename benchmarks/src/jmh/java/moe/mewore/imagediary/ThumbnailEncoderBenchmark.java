@@ -0,0 +1,67 @@
+package moe.mewore.imagediary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding the thumbnail of a day with 12 drawings in each of the thumbnail formats. The size of the encoded
+ * thumbnail is printed once for every format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ThumbnailEncoderBenchmark {
+
+    @Param({"png", "png:9", "indexed-png", "jpeg:0.85"})
+    private String format;
+
+    private ThumbnailEncoder encoder;
+
+    private BufferedImage thumbnail;
+
+    @Setup
+    public void setUp() throws IOException {
+        encoder = ThumbnailEncoder.fromName(format);
+        thumbnail = new BufferedImage(LocalImageDay.THUMBNAIL_WIDTH * 24, LocalImageDay.THUMBNAIL_HEIGHT,
+                BufferedImage.TYPE_INT_ARGB);
+        final File location = DiaryFixture.createTempLocation();
+        try {
+            new DiaryFixture(42L, 600, 800).write(location, 1, 12);
+            final File dayDirectory = Objects.requireNonNull(location.listFiles(LocalImageDay::isDayDirectory))[0];
+            final File[] imageFiles = Objects.requireNonNull(dayDirectory.listFiles(file -> file.getName()
+                    .endsWith(".png")));
+            for (int i = 0; i < imageFiles.length; i++) {
+                ThumbnailScaler.scaleInto(DiaryFixture.readImage(imageFiles[i]), thumbnail,
+                        LocalImageDay.THUMBNAIL_WIDTH * i * 2, LocalImageDay.THUMBNAIL_WIDTH,
+                        LocalImageDay.THUMBNAIL_HEIGHT);
+            }
+        } finally {
+            DiaryFixture.delete(location);
+        }
+        System.out.println("Encoded thumbnail size (" + format + "): " +
+                           Objects.requireNonNull(encoder.encode(thumbnail)).length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return encoder.encode(thumbnail);
+    }
+}
@@ -0,0 +1,106 @@
+package moe.mewore.imagediary;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Saves the thumbnail and the index of a day with a few drawings, changes or removes one of the drawings and makes a
+ * new diary draw the thumbnail again, and fails if the cells of the drawings which have not changed are not the same
+ * as before. Those drawings are taken from the index, so they are only in the saved thumbnail file.
+ */
+public class ThumbnailIndexCheck {
+
+    private static final String DATE = "2000-01-01";
+
+    private static final int UNCHANGED_HOUR = 3;
+
+    private static final int CHANGED_HOUR = 7;
+
+    public static void main(final String[] args) throws IOException {
+        boolean failed = false;
+        for (final RefreshMode refreshMode : new RefreshMode[]{RefreshMode.POLLING, RefreshMode.WATCHING}) {
+            failed |= !check(refreshMode, false);
+            failed |= !check(refreshMode, true);
+        }
+        if (failed) {
+            System.err.println("The thumbnail cells of the drawings taken from the index were not kept");
+            System.exit(1);
+        }
+        System.out.println("The thumbnail cells of the drawings taken from the index were kept");
+    }
+
+    /**
+     * @return Whether the thumbnail is as expected after the drawing has been changed or removed.
+     */
+    private static boolean check(final RefreshMode refreshMode, final boolean remove) throws IOException {
+        final File location = DiaryFixture.createTempLocation();
+        try {
+            final File dayDirectory = new File(location, DATE);
+            Files.createDirectories(dayDirectory.toPath());
+            writeDrawing(dayDirectory, UNCHANGED_HOUR, Color.RED);
+            final File changedFile = writeDrawing(dayDirectory, CHANGED_HOUR, Color.BLUE);
+            final int expectedUnchangedPixel = readCellPixel(saveThumbnail(location, refreshMode), UNCHANGED_HOUR);
+
+            if (remove) {
+                Files.delete(changedFile.toPath());
+            } else {
+                final long lastModified = changedFile.lastModified();
+                writeDrawing(dayDirectory, CHANGED_HOUR, Color.GREEN);
+                changedFile.setLastModified(lastModified + 2000L);
+            }
+            final BufferedImage thumbnail = saveThumbnail(location, refreshMode);
+            final int unchangedPixel = readCellPixel(thumbnail, UNCHANGED_HOUR);
+            final int changedPixel = readCellPixel(thumbnail, CHANGED_HOUR);
+            final int expectedChangedPixel = remove ? 0 : Color.GREEN.getRGB();
+            final boolean passed = unchangedPixel == expectedUnchangedPixel && changedPixel == expectedChangedPixel;
+            System.out.printf("%s, %s drawing: cell %d is %08x (expected %08x), cell %d is %08x (expected %08x)%n",
+                    refreshMode, remove ? "removed" : "changed", UNCHANGED_HOUR, unchangedPixel,
+                    expectedUnchangedPixel, CHANGED_HOUR, changedPixel, expectedChangedPixel);
+            return passed;
+        } finally {
+            DiaryFixture.delete(location);
+        }
+    }
+
+    /**
+     * Saves the thumbnail file and the index of the only day with a new diary, like a new run of the generator does.
+     *
+     * @return The saved thumbnail.
+     */
+    private static BufferedImage saveThumbnail(final File location, final RefreshMode refreshMode)
+            throws IOException {
+        try (final LocalImageDiary diary = new LocalImageDiary(new File[]{location}, ImageIO::read,
+                file -> Files.readString(file.toPath()),
+                LocalImageDiaryOptions.builder().refreshMode(refreshMode).build())) {
+            final ImageDay day = diary.getDaysReversed().get(0);
+            if (!day.createThumbnailFile()) {
+                throw new IOException("Failed to save the thumbnail of day " + day.getDate());
+            }
+            diary.saveIndex();
+            return DiaryFixture.readImage(new File(new File(location, DATE), day.getThumbnailFileName()));
+        }
+    }
+
+    private static File writeDrawing(final File dayDirectory, final int hour, final Color color) throws IOException {
+        final BufferedImage image = new BufferedImage(300, 400, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(color);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        } finally {
+            graphics.dispose();
+        }
+        final File file = new File(dayDirectory, "rabbit-" + DATE + "-" + hour + ".png");
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private static int readCellPixel(final BufferedImage thumbnail, final int hour) {
+        return thumbnail.getRGB(LocalImageDay.THUMBNAIL_WIDTH * hour + LocalImageDay.THUMBNAIL_WIDTH / 2,
+                LocalImageDay.THUMBNAIL_HEIGHT / 2);
+    }
+}
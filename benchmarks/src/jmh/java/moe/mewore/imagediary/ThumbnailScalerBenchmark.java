@@ -0,0 +1,94 @@
+package moe.mewore.imagediary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures scaling a single drawing into its thumbnail cell, compared to scaling it the way it used to be scaled: by
+ * copying it into a temporary image and drawing that with a bicubic transform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ThumbnailScalerBenchmark {
+
+    private static final int WIDTH = LocalImageDay.THUMBNAIL_WIDTH;
+
+    private static final int HEIGHT = LocalImageDay.THUMBNAIL_HEIGHT;
+
+    @Param({"300", "1200"})
+    private int imageWidth;
+
+    private BufferedImage image;
+
+    private final BufferedImage thumbnail = new BufferedImage(WIDTH * 24, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+
+    @Setup
+    public void setUp() throws IOException {
+        final File location = DiaryFixture.createTempLocation();
+        try {
+            new DiaryFixture(42L, imageWidth, imageWidth * 4 / 3).write(location, 1, 1);
+            final File dayDirectory = Objects.requireNonNull(location.listFiles(LocalImageDay::isDayDirectory))[0];
+            final File imageFile = Objects.requireNonNull(dayDirectory.listFiles(file -> file.getName()
+                    .endsWith(".png")))[0];
+            // Decoded the same way the diary decodes it
+            image = DiaryFixture.readImage(imageFile);
+        } finally {
+            DiaryFixture.delete(location);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        thumbnail.flush();
+    }
+
+    @Benchmark
+    public BufferedImage scaleByArea() {
+        ThumbnailScaler.scaleInto(image, thumbnail, WIDTH * 12, WIDTH, HEIGHT);
+        return thumbnail;
+    }
+
+    @Benchmark
+    public BufferedImage scaleByBicubicTransform() {
+        scaleByBicubicTransform(image, thumbnail, WIDTH * 12);
+        return thumbnail;
+    }
+
+    /**
+     * Scales the image into the cell of the thumbnail which starts at (cellX, 0) the way it used to be scaled.
+     */
+    static void scaleByBicubicTransform(final BufferedImage image, final BufferedImage thumbnail, final int cellX) {
+        final double scale = Math.max((double) WIDTH / image.getWidth(), (double) HEIGHT / image.getHeight());
+        final BufferedImage tmpThumbnail = new BufferedImage((int) (WIDTH / scale), (int) (HEIGHT / scale),
+                BufferedImage.TYPE_INT_RGB);
+        tmpThumbnail.createGraphics()
+                .drawImage(image, new AffineTransformOp(new AffineTransform(), AffineTransformOp.TYPE_NEAREST_NEIGHBOR),
+                        (tmpThumbnail.getWidth() - image.getWidth()) / 2,
+                        (tmpThumbnail.getHeight() - image.getHeight()) / 2);
+        final AffineTransformOp transformOp = new AffineTransformOp(new AffineTransform(scale, 0, 0, scale, 0, 0),
+                AffineTransformOp.TYPE_BICUBIC);
+        thumbnail.createGraphics().drawImage(tmpThumbnail, transformOp, cellX, 0);
+    }
+}
@@ -0,0 +1,104 @@
+package moe.mewore.imagediary;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Scales the drawings of synthetic diaries into thumbnail cells both with {@link ThumbnailScaler} and the way they
+ * used to be scaled, and fails if the two differ by more than the difference between their filters. The drawings have
+ * different sizes and aspect ratios, so that both scaling down and cropping to the cell are compared.
+ */
+public class ThumbnailScalerParityCheck {
+
+    private static final int WIDTH = LocalImageDay.THUMBNAIL_WIDTH;
+
+    private static final int HEIGHT = LocalImageDay.THUMBNAIL_HEIGHT;
+
+    /**
+     * The approximate widths and heights of the drawings of each diary.
+     */
+    private static final int[][] IMAGE_SIZES = {{300, 400}, {600, 800}, {1200, 1600}, {800, 400}, {200, 900}};
+
+    private static final int DAY_COUNT = 4;
+
+    private static final int IMAGES_PER_DAY = 6;
+
+    /**
+     * The lowest allowed mean PSNR of all thumbnail cells, in decibels. The old way aliases the thin lines of the
+     * drawings more the more they are scaled down, so the mean is about 31 dB rather than higher, while shifting the
+     * cells by a single pixel brings it down to about 20 dB.
+     */
+    private static final double DEFAULT_MIN_MEAN_PSNR = 29.0;
+
+    /**
+     * The lowest allowed PSNR of a single thumbnail cell, in decibels. The lowest one is about 26.5 dB.
+     */
+    private static final double DEFAULT_MIN_PSNR = 24.0;
+
+    public static void main(final String[] args) throws IOException {
+        final double minMeanPsnr = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_MIN_MEAN_PSNR;
+        final double minPsnr = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_MIN_PSNR;
+
+        double psnrSum = 0.0;
+        double lowestPsnr = Double.POSITIVE_INFINITY;
+        int imageCount = 0;
+        for (final int[] imageSize : IMAGE_SIZES) {
+            final File location = DiaryFixture.createTempLocation();
+            try {
+                new DiaryFixture(42L, imageSize[0], imageSize[1]).write(location, DAY_COUNT, IMAGES_PER_DAY);
+                for (final File dayDirectory : Objects.requireNonNull(location.listFiles(
+                        LocalImageDay::isDayDirectory))) {
+                    for (final File imageFile : Objects.requireNonNull(dayDirectory.listFiles(
+                            file -> file.getName().endsWith(".png")))) {
+                        final double psnr = getPsnr(DiaryFixture.readImage(imageFile));
+                        if (psnr < minPsnr) {
+                            System.err.printf("%s (%dx%d): %.2f dB%n", imageFile.getName(), imageSize[0],
+                                    imageSize[1], psnr);
+                        }
+                        psnrSum += psnr;
+                        lowestPsnr = Math.min(lowestPsnr, psnr);
+                        imageCount++;
+                    }
+                }
+            } finally {
+                DiaryFixture.delete(location);
+            }
+        }
+
+        final double meanPsnr = psnrSum / imageCount;
+        System.out.printf("Compared %d thumbnail cells: mean PSNR %.2f dB (at least %.2f), lowest %.2f dB " +
+                          "(at least %.2f)%n", imageCount, meanPsnr, minMeanPsnr, lowestPsnr, minPsnr);
+        if (meanPsnr < minMeanPsnr || lowestPsnr < minPsnr) {
+            System.err.println("The thumbnails differ from the ones scaled the old way more than they should");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The peak signal-to-noise ratio of the RGB channels of the image scaled by {@link ThumbnailScaler}
+     * compared to the image scaled the old way, or infinity if they are the same.
+     */
+    private static double getPsnr(final BufferedImage image) {
+        final BufferedImage scaled = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        ThumbnailScaler.scaleInto(image, scaled, 0, WIDTH, HEIGHT);
+        final BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        ThumbnailScalerBenchmark.scaleByBicubicTransform(image, expected, 0);
+
+        final int[] scaledPixels = scaled.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        final int[] expectedPixels = expected.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        long squaredErrorSum = 0L;
+        for (int i = 0; i < scaledPixels.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int difference = ((scaledPixels[i] >> shift) & 0xFF) - ((expectedPixels[i] >> shift) & 0xFF);
+                squaredErrorSum += difference * difference;
+            }
+        }
+        if (squaredErrorSum == 0L) {
+            return Double.POSITIVE_INFINITY;
+        }
+        final double meanSquaredError = (double) squaredErrorSum / (scaledPixels.length * 3);
+        return 10.0 * Math.log10(255.0 * 255.0 / meanSquaredError);
+    }
+}
@@ -0,0 +1,207 @@
+package moe.mewore.web.rabbit.generator;
+
+import moe.mewore.imagediary.AsyncImageDiary;
+import moe.mewore.imagediary.DiaryFixture;
+import moe.mewore.imagediary.ImageDataMode;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.LocalImageDiary;
+import moe.mewore.imagediary.LocalImageDiaryOptions;
+import moe.mewore.imagediary.RefreshMode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a synthetic diary with {@link RabbitServer} and requests its pages, thumbnails and images from several
+ * threads for a while, then prints the throughput and the latency percentiles. Every other request revalidates a
+ * response which has been received before, like a browser with a cache would.
+ */
+public class RabbitServerLoadTest {
+
+    private static final int DEFAULT_DAY_COUNT = 400;
+
+    private static final int DEFAULT_SECONDS = 20;
+
+    private static final int DEFAULT_CLIENT_THREADS = 8;
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    private final List<URI> uris;
+
+    /**
+     * The latest ETag of every URI, which is sent back when revalidating it.
+     */
+    private final Map<URI, String> etags = new ConcurrentHashMap<>();
+
+    private RabbitServerLoadTest(final List<URI> uris) {
+        this.uris = uris;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: RabbitServerLoadTest <template directory> [day count] [seconds] " +
+                               "[client threads]");
+            System.exit(1);
+        }
+        final Path templateDir = Path.of(args[0]).toAbsolutePath().normalize();
+        final int dayCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DAY_COUNT;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+        final int clientThreads = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CLIENT_THREADS;
+
+        final File location = DiaryFixture.createTempLocation();
+        new DiaryFixture(42L, 300, 400).write(location, dayCount, 6);
+        try (final AsyncImageDiary diary = AsyncImageDiary.withOwnThread(new LocalImageDiary(new File[]{location},
+                RabbitGenerator::readPngImage, RabbitGenerator::readTextFile, LocalImageDiaryOptions.builder()
+                .imageDataMode(ImageDataMode.ORIGINAL_FILE)
+                .refreshMode(RefreshMode.MANUAL)
+                .build()), 10L, TimeUnit.SECONDS)) {
+            final List<ImageDay> days = diary.getDaysReversedAsync().join();
+            final RabbitServer server = new RabbitServer(diary, templateDir,
+                    new InetSocketAddress("localhost", 0), Runtime.getRuntime().availableProcessors() * 2);
+            server.start();
+            try {
+                final RabbitServerLoadTest test = new RabbitServerLoadTest(getUris(server.getPort(), diary, days));
+                System.out.printf("Serving %d days; warming up for %d s%n", days.size(), seconds / 4);
+                test.run(clientThreads, TimeUnit.SECONDS.toNanos(seconds / 4));
+                System.out.printf("Measuring for %d s with %d client threads%n", seconds, clientThreads);
+                test.run(clientThreads, TimeUnit.SECONDS.toNanos(seconds)).print(seconds);
+            } finally {
+                server.close();
+            }
+        } finally {
+            DiaryFixture.delete(location);
+        }
+    }
+
+    private static List<URI> getUris(final int port, final AsyncImageDiary diary, final List<ImageDay> days) {
+        final String root = "http://localhost:" + port + "/";
+        final List<URI> result = new ArrayList<>();
+        result.add(URI.create(root));
+        for (final String month : diary.getMonthIndex().getMonths()) {
+            result.add(URI.create(root + month + "/"));
+        }
+        for (final ImageDay day : days) {
+            final String dayUrl = root + RabbitPages.RABBIT_IMAGE_DIR_NAME + "/" + day.getDate() + "/";
+            result.add(URI.create(dayUrl + day.getThumbnailFileName()));
+            final int firstHour = Integer.numberOfTrailingZeros(day.getImageMask());
+            if (firstHour < 24) {
+                result.add(URI.create(dayUrl + "rabbit-" + day.getDate() + "-" + firstHour + ".png"));
+            }
+        }
+        return result;
+    }
+
+    private Result run(final int threadCount, final long durationNanos) throws InterruptedException {
+        final long endAt = System.nanoTime() + durationNanos;
+        final Result[] results = new Result[threadCount];
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            results[i] = new Result();
+            threads[i] = new Thread(() -> requestUntil(endAt, new Random(threadIndex), results[threadIndex]));
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return Result.merge(results);
+    }
+
+    private void requestUntil(final long endAt, final Random random, final Result result) {
+        while (System.nanoTime() < endAt) {
+            final URI uri = uris.get(random.nextInt(uris.size()));
+            final HttpRequest.Builder request = HttpRequest.newBuilder(uri).header("Accept-Encoding", "gzip");
+            final @Nullable String etag = etags.get(uri);
+            if (etag != null && random.nextBoolean()) {
+                request.header("If-None-Match", etag);
+            }
+            final long startedAt = System.nanoTime();
+            try {
+                final HttpResponse<byte[]> response =
+                        client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+                result.add(System.nanoTime() - startedAt, response.statusCode());
+                response.headers().firstValue("ETag").ifPresent(value -> etags.put(uri, value));
+            } catch (final IOException e) {
+                result.add(System.nanoTime() - startedAt, -1);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class Result {
+
+        private long[] latencies = new long[1024];
+
+        private int count = 0;
+
+        private int okCount = 0;
+
+        private int notModifiedCount = 0;
+
+        private int failedCount = 0;
+
+        void add(final long latency, final int status) {
+            addLatency(latency);
+            if (status == 200) {
+                okCount++;
+            } else if (status == 304) {
+                notModifiedCount++;
+            } else {
+                failedCount++;
+            }
+        }
+
+        private void addLatency(final long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        static Result merge(final Result[] results) {
+            final Result merged = new Result();
+            for (final Result result : results) {
+                for (int i = 0; i < result.count; i++) {
+                    merged.addLatency(result.latencies[i]);
+                }
+                merged.okCount += result.okCount;
+                merged.notModifiedCount += result.notModifiedCount;
+                merged.failedCount += result.failedCount;
+            }
+            Arrays.sort(merged.latencies, 0, merged.count);
+            return merged;
+        }
+
+        void print(final int seconds) {
+            System.out.printf("Requests: %d (%d OK, %d not modified, %d failed)%n", count, okCount, notModifiedCount,
+                    failedCount);
+            System.out.printf("Throughput: %.1f requests/s%n", count / (double) seconds);
+            System.out.printf("Latency: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n", getPercentile(0.5),
+                    getPercentile(0.9), getPercentile(0.99), getPercentile(1.0));
+        }
+
+        private double getPercentile(final double percentile) {
+            if (count == 0) {
+                return 0.0;
+            }
+            final int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+            return latencies[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
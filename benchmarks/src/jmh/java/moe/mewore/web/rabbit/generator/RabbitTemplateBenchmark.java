@@ -0,0 +1,111 @@
+package moe.mewore.web.rabbit.generator;
+
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.web.rabbit.generator.RabbitTemplate.Placeholder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures compiling the rabbit page template and rendering the pages of a year-long synthetic diary with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RabbitTemplateBenchmark {
+
+    private List<String> templateLines;
+
+    private RabbitTemplate template;
+
+    private List<List<ImageDay>> months;
+
+    private final Map<Placeholder, String> values = new EnumMap<>(Placeholder.class);
+
+    @Setup
+    public void setUp() throws IOException {
+        final String templatePath = System.getProperty("rabbit.template");
+        if (templatePath == null) {
+            throw new IllegalStateException("The system property 'rabbit.template' should be the path to the template");
+        }
+        templateLines = Files.readAllLines(Path.of(templatePath));
+        template = RabbitTemplate.compile(templateLines);
+        months = SyntheticImageDay.createYear(2022, 42L);
+        for (final Placeholder placeholder : Placeholder.values()) {
+            if (!placeholder.isDayPlaceholder()) {
+                values.put(placeholder, placeholder.name().toLowerCase());
+            }
+        }
+    }
+
+    @Benchmark
+    public RabbitTemplate compileTemplate() {
+        return RabbitTemplate.compile(templateLines);
+    }
+
+    @Benchmark
+    public long renderMonth() throws IOException {
+        final CountingWriter writer = new CountingWriter();
+        template.render(writer, values, months.get(0), "../rabbit-drawings/");
+        return writer.count;
+    }
+
+    @Benchmark
+    public long renderYear() throws IOException {
+        final CountingWriter writer = new CountingWriter();
+        for (final List<ImageDay> days : months) {
+            template.render(writer, values, days, "../rabbit-drawings/");
+        }
+        return writer.count;
+    }
+
+    /**
+     * Discards what is written to it, counting only its length so that the rendering cannot be optimized away.
+     */
+    private static class CountingWriter extends Writer {
+
+        private long count = 0L;
+
+        @Override
+        public void write(final int c) {
+            count++;
+        }
+
+        @Override
+        public void write(final String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package moe.mewore.web.rabbit.generator;
+
+import lombok.RequiredArgsConstructor;
+import moe.mewore.imagediary.DiaryFile;
+import moe.mewore.imagediary.ImageDay;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An image day which exists only in memory, for measuring what is done with days without measuring the file system.
+ */
+@RequiredArgsConstructor
+class SyntheticImageDay implements ImageDay {
+
+    private final String date;
+
+    private final int imageMask;
+
+    private final @Nullable String[] events;
+
+    /**
+     * @return The days of the year, newest first and grouped by month, newest first. Every day has a few images and
+     * an occasional event.
+     */
+    static List<List<ImageDay>> createYear(final int year, final long seed) {
+        final Random random = new Random(seed);
+        final List<List<ImageDay>> months = new ArrayList<>();
+        for (int month = 12; month >= 1; month--) {
+            final List<ImageDay> days = new ArrayList<>();
+            final int dayCount = LocalDate.of(year, month, 1).lengthOfMonth();
+            for (int day = dayCount; day >= 1; day--) {
+                int imageMask = 0;
+                final String[] events = new String[24];
+                for (int hour = 0; hour < 24; hour++) {
+                    if (random.nextInt(4) == 0) {
+                        imageMask |= 1 << hour;
+                    }
+                    if (random.nextInt(16) == 0) {
+                        events[hour] = "Something \"important\" happened at " + hour + " o'clock";
+                    }
+                }
+                days.add(new SyntheticImageDay(LocalDate.of(year, month, day).toString(), imageMask, events));
+            }
+            months.add(Collections.unmodifiableList(days));
+        }
+        return months;
+    }
+
+    @Override
+    public void refresh() {
+    }
+
+    @Override
+    public boolean createThumbnailFile() {
+        return true;
+    }
+
+    @Override
+    public byte @Nullable [] getImageData(final int hour) {
+        return null;
+    }
+
+    @Override
+    public @Nullable ByteBuffer getImageBuffer(final int hour) {
+        return null;
+    }
+
+    @Override
+    public long getImageLastModified(final int hour) {
+        return 0L;
+    }
+
+    @Override
+    public @Nullable DiaryFile openImageFile(final int hour) {
+        return null;
+    }
+
+    @Override
+    public @Nullable String getEvent(final int hour) {
+        return events[hour];
+    }
+
+    @Override
+    public byte[] getThumbnailData() {
+        return new byte[0];
+    }
+
+    @Override
+    public @Nullable DiaryFile openThumbnailFile() {
+        return null;
+    }
+
+    @Override
+    public String getThumbnailFileName() {
+        return "thumbnail.png";
+    }
+
+    @Override
+    public int getImageMask() {
+        return imageMask;
+    }
+
+    @Override
+    public int getImageCount() {
+        return Integer.bitCount(imageMask);
+    }
+
+    @Override
+    public int getEventMask() {
+        int mask = 0;
+        for (int hour = 0; hour < 24; hour++) {
+            if (events[hour] != null) {
+                mask |= 1 << hour;
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public String getDate() {
+        return date;
+    }
+
+    @Override
+    public String getMonth() {
+        return date.substring(0, date.lastIndexOf('-'));
+    }
+
+    @Override
+    public long getSize() {
+        return 0L;
+    }
+
+    @Override
+    public int compareDate(final ImageDay other) {
+        return date.compareTo(other.getDate());
+    }
+}
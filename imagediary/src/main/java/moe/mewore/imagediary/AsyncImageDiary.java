@@ -0,0 +1,223 @@
+package moe.mewore.imagediary;
+
+import lombok.RequiredArgsConstructor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An image diary which refreshes another one and all of its days in the background and only ever returns what the
+ * latest background refresh has found, so accessing it never waits for the file system. For the days to not list
+ * their directories when they are accessed either, the other diary should use {@link RefreshMode#MANUAL}.
+ */
+public class AsyncImageDiary implements ImageDiary, Closeable {
+
+    private final ImageDiary diary;
+
+    private final ScheduledExecutorService executor;
+
+    private final boolean ownsExecutor;
+
+    private final ScheduledFuture<?> scheduledRefresh;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+
+    /**
+     * Completed as soon as the first background refresh has been published, or completed exceptionally if the first
+     * refresh fails so that nobody waits for it forever.
+     */
+    private final CompletableFuture<Void> firstRefresh = new CompletableFuture<>();
+
+    /**
+     * @param diary    The diary to refresh. It should not be accessed directly while this one is in use.
+     * @param executor The executor to refresh the diary in. It is not shut down when this diary is closed.
+     * @param period   The time between the end of a refresh and the start of the next one.
+     */
+    public AsyncImageDiary(final ImageDiary diary, final ScheduledExecutorService executor, final long period,
+                           final TimeUnit unit) {
+        this(diary, executor, false, period, unit);
+    }
+
+    private AsyncImageDiary(final ImageDiary diary, final ScheduledExecutorService executor,
+                            final boolean ownsExecutor, final long period, final TimeUnit unit) {
+        this.diary = diary;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        scheduledRefresh = executor.scheduleWithFixedDelay(this::refreshInBackground, 0L, period, unit);
+    }
+
+    /**
+     * Creates an asynchronous diary which refreshes the other one in a daemon thread of its own.
+     */
+    public static AsyncImageDiary withOwnThread(final ImageDiary diary, final long period, final TimeUnit unit) {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "image-diary-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new AsyncImageDiary(diary, executor, true, period, unit);
+    }
+
+    private void refreshInBackground() {
+        try {
+            refreshNow();
+        } catch (final RuntimeException e) {
+            // The scheduled refreshes would stop if this is thrown further
+            System.err.println("Failed to refresh the image diary in the background");
+            e.printStackTrace();
+        }
+    }
+
+    private void refreshNow() {
+        try {
+            diary.refresh();
+            final List<ImageDay> daysReversed = diary.getDaysReversed();
+            final NavigableMap<Integer, ImageDay> daysByDate = new TreeMap<>();
+            for (final ImageDay day : daysReversed) {
+                day.refresh();
+                daysByDate.put(DiaryDates.packDate(day.getDate()), day);
+            }
+            state.set(new State(Collections.unmodifiableList(daysReversed), diary.getDaysByMonthReversed(),
+                    new NavigableDays(Collections.unmodifiableNavigableMap(daysByDate)), diary.getMonthIndex()));
+        } catch (final RuntimeException | Error e) {
+            // Does nothing if a refresh has already been published
+            firstRefresh.completeExceptionally(e);
+            throw e;
+        }
+        firstRefresh.complete(null);
+    }
+
+    /**
+     * Refreshes the diary in the background right away, without waiting for the next scheduled refresh.
+     *
+     * @return A future which is completed once the result of the refresh has been published.
+     */
+    public CompletableFuture<Void> refreshAsync() {
+        return CompletableFuture.runAsync(this::refreshNow, executor);
+    }
+
+    /**
+     * Refreshes the diary in the background and waits for it.
+     */
+    @Override
+    public void refresh() {
+        refreshAsync().join();
+    }
+
+    /**
+     * @return The days found by the latest background refresh, which are none if there has not been one yet.
+     */
+    @Override
+    public List<ImageDay> getDaysReversed() {
+        return state.get().daysReversed;
+    }
+
+    @Override
+    public List<Map.Entry<String, List<ImageDay>>> getDaysByMonthReversed() {
+        return state.get().daysByMonthReversed;
+    }
+
+    @Override
+    public @Nullable ImageDay getDay(final String name) {
+        return state.get().days.getDay(name);
+    }
+
+    @Override
+    public List<ImageDay> getDaysInMonthReversed(final String month) {
+        return state.get().days.getDaysInMonthReversed(month);
+    }
+
+    @Override
+    public List<ImageDay> getDaysBetweenReversed(final String fromDate, final String toDate) {
+        return state.get().days.getDaysBetweenReversed(fromDate, toDate);
+    }
+
+    @Override
+    public @Nullable ImageDay getNextDay(final String date) {
+        return state.get().days.getNextDay(date);
+    }
+
+    @Override
+    public @Nullable ImageDay getPreviousDay(final String date) {
+        return state.get().days.getPreviousDay(date);
+    }
+
+    @Override
+    public @Nullable String getNextMonth(final String month) {
+        return state.get().days.getNextMonth(month);
+    }
+
+    @Override
+    public @Nullable String getPreviousMonth(final String month) {
+        return state.get().days.getPreviousMonth(month);
+    }
+
+    @Override
+    public MonthIndex getMonthIndex() {
+        return state.get().monthIndex;
+    }
+
+    /**
+     * @return A future of the days, which is completed once the first background refresh has been published, or
+     * completed exceptionally if it has failed.
+     */
+    public CompletableFuture<List<ImageDay>> getDaysReversedAsync() {
+        return firstRefresh.thenApply(ignored -> getDaysReversed());
+    }
+
+    public CompletableFuture<List<Map.Entry<String, List<ImageDay>>>> getDaysByMonthReversedAsync() {
+        return firstRefresh.thenApply(ignored -> getDaysByMonthReversed());
+    }
+
+    public CompletableFuture<@Nullable ImageDay> getDayAsync(final String name) {
+        return firstRefresh.thenApply(ignored -> getDay(name));
+    }
+
+    @Override
+    public void saveIndex() {
+        diary.saveIndex();
+    }
+
+    @Override
+    public long getSize() {
+        return diary.getSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduledRefresh.cancel(false);
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+        if (diary instanceof Closeable) {
+            ((Closeable) diary).close();
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static final class State {
+
+        private static final State EMPTY = new State(Collections.emptyList(), Collections.emptyList(),
+                new NavigableDays(Collections.emptyNavigableMap()), MonthIndex.empty());
+
+        private final List<ImageDay> daysReversed;
+
+        private final List<Map.Entry<String, List<ImageDay>>> daysByMonthReversed;
+
+        private final NavigableDays days;
+
+        private final MonthIndex monthIndex;
+    }
+}
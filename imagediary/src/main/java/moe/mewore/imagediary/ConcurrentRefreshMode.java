@@ -0,0 +1,19 @@
+package moe.mewore.imagediary;
+
+/**
+ * Determines what happens when a diary or a day is accessed while it is already being refreshed by someone else.
+ * There is never more than one refresh of the same diary or day at a time either way, and the first refresh is always
+ * waited for because there is nothing to return before it.
+ */
+public enum ConcurrentRefreshMode {
+
+    /**
+     * The accessor waits for the refresh in progress to finish and returns its result.
+     */
+    WAIT,
+
+    /**
+     * The accessor returns what was there before the refresh in progress started, without waiting for it.
+     */
+    SERVE_STALE,
+}
@@ -0,0 +1,223 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+/**
+ * The image, event and thumbnail files in the directory of a day as of the time it was listed, along with their sizes
+ * and modification times. The directory is listed once and the attributes of each entry are read in the same pass, so
+ * that the images, the events and the image mask can all be taken from the same listing.
+ */
+final class DayListing {
+
+    private static final String IMAGE_EXTENSION = ".png";
+
+    private static final String EVENT_PREFIX = "event-";
+
+    private static final String EVENT_EXTENSION = ".txt";
+
+    /**
+     * The length of a "YYYY-MM-DD" date.
+     */
+    private static final int DATE_LENGTH = 10;
+
+    /**
+     * The time at which the listing was started, in milliseconds since the epoch.
+     */
+    final long listedAt;
+
+    final int imageMask;
+
+    final int eventMask;
+
+    private final @Nullable String[] imageFileNames;
+
+    private final long[] imageFileSizes;
+
+    private final long[] imageFilesLastModified;
+
+    private final @Nullable String[] eventFileNames;
+
+    /**
+     * The size of the thumbnail file, or -1 if there is no thumbnail file.
+     */
+    final long thumbnailFileSize;
+
+    final long thumbnailFileLastModified;
+
+    private DayListing(final long listedAt, final int imageMask, final int eventMask,
+                       final @Nullable String[] imageFileNames, final long[] imageFileSizes,
+                       final long[] imageFilesLastModified, final @Nullable String[] eventFileNames,
+                       final long thumbnailFileSize, final long thumbnailFileLastModified) {
+        this.listedAt = listedAt;
+        this.imageMask = imageMask;
+        this.eventMask = eventMask;
+        this.imageFileNames = imageFileNames;
+        this.imageFileSizes = imageFileSizes;
+        this.imageFilesLastModified = imageFilesLastModified;
+        this.eventFileNames = eventFileNames;
+        this.thumbnailFileSize = thumbnailFileSize;
+        this.thumbnailFileLastModified = thumbnailFileLastModified;
+    }
+
+    /**
+     * Lists the directory of a day. If two images or two events are in the same hour, the one whose name comes first
+     * is used.
+     *
+     * @param date              The date of the day, which the names of its images and events should contain.
+     * @param thumbnailFileName The name of the thumbnail file of the day.
+     * @return The listing, or null if the directory could not be listed.
+     */
+    static @Nullable DayListing list(final Path directory, final String date, final String thumbnailFileName) {
+        final long listedAt = System.currentTimeMillis();
+        final @Nullable String[] imageFileNames = new String[24];
+        final long[] imageFileSizes = new long[24];
+        final long[] imageFilesLastModified = new long[24];
+        final @Nullable String[] eventFileNames = new String[24];
+        final long[] thumbnailAttributes = {-1L, 0L};
+        try {
+            Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final String name = file.getFileName().toString();
+                    final int imageHour = parseImageHour(name, date);
+                    if (imageHour >= 0) {
+                        if (imageFileNames[imageHour] == null || name.compareTo(imageFileNames[imageHour]) < 0) {
+                            imageFileNames[imageHour] = name;
+                            imageFileSizes[imageHour] = attributes.size();
+                            imageFilesLastModified[imageHour] = attributes.lastModifiedTime().toMillis();
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final int eventHour = parseEventHour(name, date);
+                    if (eventHour >= 0) {
+                        if (eventFileNames[eventHour] == null || name.compareTo(eventFileNames[eventHour]) < 0) {
+                            eventFileNames[eventHour] = name;
+                        }
+                    } else if (name.equals(thumbnailFileName)) {
+                        thumbnailAttributes[0] = attributes.size();
+                        thumbnailAttributes[1] = attributes.lastModifiedTime().toMillis();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+                    if (file.equals(directory)) {
+                        throw e;
+                    }
+                    // The entry has been deleted while listing or is a broken link
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            System.err.println("Failed to list the image day directory " + directory + ": " + e);
+            return null;
+        }
+        return new DayListing(listedAt, getMask(imageFileNames), getMask(eventFileNames), imageFileNames,
+                imageFileSizes, imageFilesLastModified, eventFileNames, thumbnailAttributes[0],
+                thumbnailAttributes[1]);
+    }
+
+    private static int getMask(final @Nullable String[] fileNames) {
+        int mask = 0;
+        for (int hour = 0; hour < fileNames.length; hour++) {
+            if (fileNames[hour] != null) {
+                mask |= 1 << hour;
+            }
+        }
+        return mask;
+    }
+
+    @Nullable String getImageFileName(final int hour) {
+        return imageFileNames[hour];
+    }
+
+    long getImageFileSize(final int hour) {
+        return imageFileSizes[hour];
+    }
+
+    long getImageFileLastModified(final int hour) {
+        return imageFilesLastModified[hour];
+    }
+
+    @Nullable String getEventFileName(final int hour) {
+        return eventFileNames[hour];
+    }
+
+    /**
+     * @return The hour of an image named "[anything]-[date]-[hour].png", or -1 if the name is not like that or the
+     * hour is not from 0 to 23.
+     */
+    static int parseImageHour(final String name, final String date) {
+        if (!name.endsWith(IMAGE_EXTENSION)) {
+            return -1;
+        }
+        final int hourEnd = name.length() - IMAGE_EXTENSION.length();
+        final int hourStart = findHourStart(name, hourEnd);
+        // At least one character and a dash have to come before the date
+        final int dateStart = hourStart - 1 - DATE_LENGTH;
+        if (hourStart < 0 || dateStart < 2 || name.charAt(dateStart - 1) != '-' ||
+                !name.startsWith(date, dateStart)) {
+            return -1;
+        }
+        return parseHour(name, hourStart, hourEnd);
+    }
+
+    /**
+     * @return The hour of an event named "[anything]event-[date]-[hour].txt", or -1 if the name is not like that or
+     * the hour is not from 0 to 23.
+     */
+    static int parseEventHour(final String name, final String date) {
+        if (!name.endsWith(EVENT_EXTENSION)) {
+            return -1;
+        }
+        final int hourEnd = name.length() - EVENT_EXTENSION.length();
+        final int hourStart = findHourStart(name, hourEnd);
+        final int dateStart = hourStart - 1 - DATE_LENGTH;
+        if (hourStart < 0 || dateStart < EVENT_PREFIX.length() ||
+                !name.startsWith(EVENT_PREFIX, dateStart - EVENT_PREFIX.length()) ||
+                !name.startsWith(date, dateStart)) {
+            return -1;
+        }
+        return parseHour(name, hourStart, hourEnd);
+    }
+
+    /**
+     * @return The index of the first of the one or two digits which end at the given index and come right after a
+     * dash, or -1 if there are no such digits.
+     */
+    private static int findHourStart(final String name, final int hourEnd) {
+        int hourStart = hourEnd;
+        while (hourStart > 0 && hourEnd - hourStart < 2 && isDigit(name.charAt(hourStart - 1))) {
+            hourStart--;
+        }
+        if (hourStart == hourEnd || hourStart == 0 || name.charAt(hourStart - 1) != '-') {
+            return -1;
+        }
+        return hourStart;
+    }
+
+    private static int parseHour(final String name, final int hourStart, final int hourEnd) {
+        int hour = 0;
+        for (int i = hourStart; i < hourEnd; i++) {
+            hour = hour * 10 + (name.charAt(i) - '0');
+        }
+        return hour < 24 ? hour : -1;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
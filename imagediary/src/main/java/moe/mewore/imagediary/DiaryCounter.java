@@ -0,0 +1,23 @@
+package moe.mewore.imagediary;
+
+/**
+ * The amounts which are counted by the {@link DiaryMetrics} of a diary.
+ */
+public enum DiaryCounter {
+    DIARY_REFRESHES,
+    DAY_REFRESHES,
+    IMAGES_DECODED,
+    /**
+     * The sizes of the image files which have been decoded.
+     */
+    BYTES_DECODED,
+    /**
+     * The sizes of the image data and thumbnails which have been encoded.
+     */
+    BYTES_ENCODED,
+    /**
+     * The requests for the data of an image which has not been released since it was last encoded.
+     */
+    IMAGE_DATA_HITS,
+    IMAGE_DATA_MISSES
+}
@@ -0,0 +1,71 @@
+package moe.mewore.imagediary;
+
+/**
+ * Packs the "YYYY-MM-DD" dates of the days and the "YYYY-MM" months into integers which sort the same way as the
+ * strings, so that the days can be kept in a sorted map without comparing strings.
+ */
+final class DiaryDates {
+
+    static final int INVALID = -1;
+
+    private DiaryDates() {
+    }
+
+    /**
+     * @return The date as YYYYMMDD, or {@link #INVALID} if it is not in the "YYYY-MM-DD" format.
+     */
+    static int packDate(final String date) {
+        if (date.length() != 10 || date.charAt(7) != '-') {
+            return INVALID;
+        }
+        final int month = packMonth(date.substring(0, 7));
+        final int day = parseDigits(date, 8, 10);
+        return month == INVALID || day < 0 ? INVALID : month * 100 + day;
+    }
+
+    /**
+     * @return The month as YYYYMM, or {@link #INVALID} if it is not in the "YYYY-MM" format.
+     */
+    static int packMonth(final String month) {
+        if (month.length() != 7 || month.charAt(4) != '-') {
+            return INVALID;
+        }
+        final int year = parseDigits(month, 0, 4);
+        final int monthOfYear = parseDigits(month, 5, 7);
+        return year < 0 || monthOfYear < 0 ? INVALID : year * 100 + monthOfYear;
+    }
+
+    /**
+     * @return The first packed date which can be in the packed month.
+     */
+    static int getFirstDate(final int packedMonth) {
+        return packedMonth * 100;
+    }
+
+    /**
+     * @return The last packed date which can be in the packed month.
+     */
+    static int getLastDate(final int packedMonth) {
+        return packedMonth * 100 + 99;
+    }
+
+    static int getMonth(final int packedDate) {
+        return packedDate / 100;
+    }
+
+    static String unpackMonth(final int packedMonth) {
+        return String.format("%04d-%02d", packedMonth / 100, packedMonth % 100);
+    }
+
+    private static int parseDigits(final String value, final int from, final int to) {
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package moe.mewore.imagediary;
+
+import lombok.Getter;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open file of a diary, which can be sent somewhere as it is without reading it into the heap. It should be closed
+ * once it has been sent.
+ */
+public final class DiaryFile implements Closeable {
+
+    private final FileChannel channel;
+
+    /**
+     * The size of the file when it was opened, in bytes.
+     */
+    @Getter
+    private final long size;
+
+    /**
+     * The time at which the file was last modified before it was opened, in milliseconds since the epoch.
+     */
+    @Getter
+    private final long lastModified;
+
+    private DiaryFile(final FileChannel channel, final long size, final long lastModified) {
+        this.channel = channel;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The opened file, or null if it does not exist or could not be opened.
+     */
+    public static @Nullable DiaryFile open(final Path file) {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            return new DiaryFile(channel, channel.size(), Files.getLastModifiedTime(file).toMillis());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            try {
+                channel.close();
+            } catch (final IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a part of the file into the target with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * which copies nothing through the heap if the target is a file or a socket channel, and only a small buffer at a
+     * time otherwise.
+     *
+     * @param position The position of the first byte to write.
+     * @param count    The number of bytes to write.
+     * @throws EOFException If the file has become shorter since it was opened.
+     */
+    public void transferTo(final long position, final long count, final WritableByteChannel target)
+            throws IOException {
+        long transferred = 0L;
+        while (transferred < count) {
+            final long transferredNow = channel.transferTo(position + transferred, count - transferred, target);
+            if (transferredNow <= 0L) {
+                throw new EOFException("The file has become shorter than " + (position + count) + " bytes");
+            }
+            transferred += transferredNow;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
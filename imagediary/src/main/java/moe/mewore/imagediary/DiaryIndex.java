@@ -0,0 +1,243 @@
+package moe.mewore.imagediary;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.With;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of what is known about the days in a single diary location. It allows the days whose images have
+ * not changed since the last time the index was saved to reuse their thumbnail file instead of decoding every image.
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+class DiaryIndex {
+
+    static final String FILE_NAME = ".imagediary-index";
+
+    private static final int MAGIC = 0x62_6e_75_79;
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private final Map<String, DayEntry> days;
+
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+
+    static DiaryIndex load(final File location) {
+        final File file = new File(location, FILE_NAME);
+        final Map<String, DayEntry> days = new ConcurrentHashMap<>();
+        try (final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                System.err.println("Ignoring the image diary index " + file + " because its format is unknown");
+                return new DiaryIndex(file, days);
+            }
+            final int dayCount = input.readInt();
+            for (int i = 0; i < dayCount; i++) {
+                final DayEntry day = DayEntry.read(input);
+                days.put(day.getDate(), day);
+            }
+        } catch (final NoSuchFileException e) {
+            return new DiaryIndex(file, days);
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("Failed to read the image diary index " + file + "; it will be rebuilt");
+            e.printStackTrace();
+            days.clear();
+        }
+        return new DiaryIndex(file, days);
+    }
+
+    @Nullable DayEntry getDay(final String date) {
+        return days.get(date);
+    }
+
+    void putDay(final DayEntry day) {
+        if (!day.equals(days.put(day.getDate(), day))) {
+            changed.set(true);
+        }
+    }
+
+    void retainDays(final Collection<String> dates) {
+        if (days.keySet().retainAll(dates)) {
+            changed.set(true);
+        }
+    }
+
+    /**
+     * Writes the index to its file if anything in it has changed since it was loaded or last saved.
+     */
+    synchronized void save() {
+        if (!changed.getAndSet(false)) {
+            return;
+        }
+        final Path target = file.toPath();
+        final Path tmpFile = target.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (final DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                final DayEntry[] dayEntries = days.values().toArray(new DayEntry[0]);
+                output.writeInt(dayEntries.length);
+                for (final DayEntry day : dayEntries) {
+                    day.write(output);
+                }
+            }
+            Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            changed.set(true);
+            System.err.println("Failed to save the image diary index " + file);
+            e.printStackTrace();
+        }
+    }
+
+    static long computeHash(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream input = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    @Value
+    static class DayEntry {
+
+        String date;
+
+        /**
+         * The signature of the encoder which the thumbnail file was written with.
+         */
+        String thumbnailFormat;
+
+        long thumbnailSize;
+
+        long thumbnailLastModified;
+
+        @Nullable ImageEntry[] images;
+
+        @Nullable ImageEntry getImage(final int hour) {
+            return images[hour];
+        }
+
+        int getImageMask() {
+            int mask = 0;
+            for (int hour = 0; hour < images.length; hour++) {
+                if (images[hour] != null) {
+                    mask |= 1 << hour;
+                }
+            }
+            return mask;
+        }
+
+        /**
+         * @param fileSize The size of the thumbnail file, or a negative number if it does not exist.
+         */
+        boolean matchesThumbnail(final long fileSize, final long fileLastModified, final String format) {
+            return thumbnailFormat.equals(format) && fileSize >= 0L && fileSize == thumbnailSize &&
+                    fileLastModified == thumbnailLastModified;
+        }
+
+        private void write(final DataOutputStream output) throws IOException {
+            output.writeUTF(date);
+            output.writeUTF(thumbnailFormat);
+            output.writeLong(thumbnailSize);
+            output.writeLong(thumbnailLastModified);
+            output.writeInt(getImageMask());
+            for (final ImageEntry image : images) {
+                if (image != null) {
+                    image.write(output);
+                }
+            }
+        }
+
+        private static DayEntry read(final DataInputStream input) throws IOException {
+            final String date = input.readUTF();
+            final String thumbnailFormat = input.readUTF();
+            final long thumbnailSize = input.readLong();
+            final long thumbnailLastModified = input.readLong();
+            final int imageMask = input.readInt();
+            final @Nullable ImageEntry[] images = new ImageEntry[24];
+            for (int hour = 0; hour < images.length; hour++) {
+                if ((imageMask & (1 << hour)) != 0) {
+                    images[hour] = ImageEntry.read(input);
+                }
+            }
+            return new DayEntry(date, thumbnailFormat, thumbnailSize, thumbnailLastModified, images);
+        }
+    }
+
+    @Value
+    static class ImageEntry {
+
+        long size;
+
+        @With
+        long lastModified;
+
+        int width;
+
+        int height;
+
+        long hash;
+
+        /**
+         * The horizontal offset of the image's cell in the thumbnail of its day.
+         */
+        int thumbnailOffset;
+
+        /**
+         * @return Whether the file is the same as the one this entry was made from. The content hash is only
+         * computed if the size matches but the modification time does not.
+         */
+        boolean matches(final File file, final long fileSize, final long fileLastModified) {
+            if (fileSize != size) {
+                return false;
+            }
+            if (fileLastModified == lastModified) {
+                return true;
+            }
+            try {
+                return computeHash(file) == hash;
+            } catch (final IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        private void write(final DataOutputStream output) throws IOException {
+            output.writeLong(size);
+            output.writeLong(lastModified);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeLong(hash);
+            output.writeInt(thumbnailOffset);
+        }
+
+        private static ImageEntry read(final DataInputStream input) throws IOException {
+            return new ImageEntry(input.readLong(), input.readLong(), input.readInt(), input.readInt(),
+                    input.readLong(), input.readInt());
+        }
+    }
+}
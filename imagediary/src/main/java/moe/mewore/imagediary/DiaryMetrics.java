@@ -0,0 +1,42 @@
+package moe.mewore.imagediary;
+
+/**
+ * Receives the latencies of the operations of a diary and the amounts that it counts. The diary calls it from all of
+ * the threads which use it, so it should be thread-safe and cheap. By default, nothing is recorded at all.
+ */
+public interface DiaryMetrics {
+
+    DiaryMetrics NONE = new DiaryMetrics() {
+        @Override
+        public long startTimer() {
+            return 0L;
+        }
+
+        @Override
+        public void stopTimer(final DiaryOperation operation, final long startedAt) {
+        }
+
+        @Override
+        public void recordLatency(final DiaryOperation operation, final long nanos) {
+        }
+
+        @Override
+        public void count(final DiaryCounter counter, final long amount) {
+        }
+    };
+
+    void recordLatency(DiaryOperation operation, long nanos);
+
+    void count(DiaryCounter counter, long amount);
+
+    /**
+     * @return The value to pass to {@link #stopTimer(DiaryOperation, long)} once the operation is done.
+     */
+    default long startTimer() {
+        return System.nanoTime();
+    }
+
+    default void stopTimer(final DiaryOperation operation, final long startedAt) {
+        recordLatency(operation, System.nanoTime() - startedAt);
+    }
+}
@@ -0,0 +1,36 @@
+package moe.mewore.imagediary;
+
+/**
+ * The operations whose latencies are recorded into the {@link DiaryMetrics} of a diary.
+ */
+public enum DiaryOperation {
+    /**
+     * Listing the locations of a diary and adding or removing its days.
+     */
+    REFRESH_DIARY,
+    /**
+     * Refreshing the images and events of a day, including the decoding and encoding it needs.
+     */
+    REFRESH_DAY,
+    /**
+     * Listing the files of a location or a day.
+     */
+    LIST_FILES,
+    /**
+     * Decoding an image and drawing it into the thumbnail of its day.
+     */
+    REGISTER_IMAGE,
+    /**
+     * Encoding a decoded image so that its data can be served.
+     */
+    READ_IMAGE_DATA,
+    ENCODE_THUMBNAIL,
+    /**
+     * Waiting for the lock which only one refresh of a day can hold at a time.
+     */
+    LOCK_WAIT,
+    /**
+     * Rendering a page from the diary. Recorded by whoever renders the pages.
+     */
+    RENDER_PAGE
+}
@@ -0,0 +1,110 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watches the directories of an image diary in a background thread and notifies their listeners of the changes in
+ * them.
+ */
+class DiaryWatcher implements Closeable {
+
+    @FunctionalInterface
+    interface Listener {
+
+        /**
+         * @param kind  The kind of the change.
+         * @param child The name of the changed directory entry, or null if some changes have been lost.
+         */
+        void onChange(WatchEvent.Kind<?> kind, @Nullable Path child);
+    }
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Listener> listeners = new HashMap<>();
+
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+
+    DiaryWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        final Thread thread = new Thread(this::run, "image-diary-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void watch(final Path directory, final Listener listener) {
+        synchronized (listeners) {
+            try {
+                final WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                listeners.put(key, listener);
+                keys.put(directory, key);
+            } catch (final IOException e) {
+                System.err.println("Failed to watch directory " + directory);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void unwatch(final Path directory) {
+        synchronized (listeners) {
+            final @Nullable WatchKey key = keys.remove(directory);
+            if (key != null) {
+                key.cancel();
+                listeners.remove(key);
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ClosedWatchServiceException e) {
+                return;
+            }
+            final @Nullable Listener listener;
+            synchronized (listeners) {
+                listener = listeners.get(key);
+            }
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (listener == null) {
+                    continue;
+                }
+                final @Nullable Path child =
+                        event.kind() == StandardWatchEventKinds.OVERFLOW ? null : (Path) event.context();
+                try {
+                    listener.onChange(event.kind(), child);
+                } catch (final RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!key.reset()) {
+                synchronized (listeners) {
+                    listeners.remove(key);
+                    keys.values().remove(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,146 @@
+package moe.mewore.imagediary;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the latencies of each operation in a histogram in memory, with a precision of 1/8 of each power of two
+ * nanoseconds, and the total of each counter.
+ */
+public class HistogramDiaryMetrics implements DiaryMetrics {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final Map<DiaryOperation, Histogram> histograms = new EnumMap<>(DiaryOperation.class);
+
+    private final Map<DiaryCounter, LongAdder> counters = new EnumMap<>(DiaryCounter.class);
+
+    public HistogramDiaryMetrics() {
+        // Filled in advance so that the maps are only read afterwards and need no locking
+        for (final DiaryOperation operation : DiaryOperation.values()) {
+            histograms.put(operation, new Histogram());
+        }
+        for (final DiaryCounter counter : DiaryCounter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    @Override
+    public void recordLatency(final DiaryOperation operation, final long nanos) {
+        histograms.get(operation).record(Math.max(0L, nanos));
+    }
+
+    @Override
+    public void count(final DiaryCounter counter, final long amount) {
+        counters.get(counter).add(amount);
+    }
+
+    public long getCount(final DiaryOperation operation) {
+        return histograms.get(operation).count.sum();
+    }
+
+    public long getTotalNanos(final DiaryOperation operation) {
+        return histograms.get(operation).total.sum();
+    }
+
+    /**
+     * @param percentile From 0 to 100.
+     * @return The latency which the given percentage of the recorded latencies do not exceed, rounded up to the upper
+     * bound of its bucket, or 0 if nothing has been recorded.
+     */
+    public long getPercentileNanos(final DiaryOperation operation, final double percentile) {
+        return histograms.get(operation).getPercentile(percentile);
+    }
+
+    public long getTotal(final DiaryCounter counter) {
+        return counters.get(counter).sum();
+    }
+
+    /**
+     * @return A table with the operations which have been recorded and the counters which are not zero.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder(String.format("%-16s %8s %10s %10s %10s %10s %10s", "operation",
+                "count", "total ms", "mean ms", "p50 ms", "p99 ms", "max ms"));
+        for (final DiaryOperation operation : DiaryOperation.values()) {
+            final long count = getCount(operation);
+            if (count > 0) {
+                final long total = getTotalNanos(operation);
+                result.append(String.format("%n%-16s %8d %10.1f %10.3f %10.3f %10.3f %10.3f", operation, count,
+                        total / 1e6, total / 1e6 / count, getPercentileNanos(operation, 50.0) / 1e6,
+                        getPercentileNanos(operation, 99.0) / 1e6, histograms.get(operation).max.get() / 1e6));
+            }
+        }
+        for (final DiaryCounter counter : DiaryCounter.values()) {
+            final long total = getTotal(counter);
+            if (total != 0L) {
+                result.append(String.format("%n%-16s %8d", counter, total));
+            }
+        }
+        return result.toString();
+    }
+
+    private static int getBucket(final long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        final int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        final int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return The largest value which falls into the bucket.
+     */
+    private static long getBucketUpperBound(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        final int magnitude = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket % SUB_BUCKET_COUNT;
+        final long lowerBound = (SUB_BUCKET_COUNT | subBucket) << (magnitude - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (magnitude - SUB_BUCKET_BITS)) - 1L;
+    }
+
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder total = new LongAdder();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(final long nanos) {
+            buckets.incrementAndGet(getBucket(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long getPercentile(final double percentile) {
+            final long count = this.count.sum();
+            if (count == 0L) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0L;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBound(bucket), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package moe.mewore.imagediary;
+
+/**
+ * Determines what {@link ImageDay#getImageData(int)} returns and what is kept in memory for it.
+ */
+public enum ImageDataMode {
+
+    /**
+     * The images are decoded and encoded again as PNG, and the result is kept in memory.
+     */
+    REENCODED,
+
+    /**
+     * The original image files are read only when their data is requested, and nothing is kept in memory.
+     */
+    ORIGINAL_FILE,
+}
@@ -2,21 +2,55 @@ package moe.mewore.imagediary;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.nio.ByteBuffer;
+
 public interface ImageDay {
 
     void refresh();
 
     /**
-     * Generates the thumbnail only if it doesn't already exist.
+     * Generates the thumbnail only if it doesn't already exist or is out of date.
+     *
+     * @return Whether the thumbnail file is up to date, which it is not if the thumbnail could not be drawn, encoded or
+     * written.
      */
-    void createThumbnailFile();
+    boolean createThumbnailFile();
 
     byte @Nullable[] getImageData(int hour);
 
+    /**
+     * @return A read-only view of the data of the image in the hour, which is not necessarily on the heap.
+     */
+    @Nullable ByteBuffer getImageBuffer(int hour);
+
+    /**
+     * @return The time at which the image in the hour was last modified, in milliseconds since the epoch, or 0 if there
+     * is no such image.
+     */
+    long getImageLastModified(int hour);
+
+    /**
+     * An alternative to {@link #getImageData(int)} for sending the image somewhere without reading it into the heap.
+     *
+     * @return The file of the image in the hour as it is, or null if there is no such image. It should be closed.
+     */
+    @Nullable DiaryFile openImageFile(int hour);
+
     @Nullable String getEvent(int hour);
 
     byte[] getThumbnailData();
 
+    /**
+     * @return The thumbnail file, which should be closed, or null if it has not been saved since the thumbnail last
+     * changed, in which case only {@link #getThumbnailData()} has the current thumbnail.
+     */
+    @Nullable DiaryFile openThumbnailFile();
+
+    /**
+     * @return The name of the thumbnail file in the directory of the day.
+     */
+    String getThumbnailFileName();
+
     /**
      * @return A 24-bit mask where a 1 is a present image in the hour and a 0 is an absent image.
      */
@@ -0,0 +1,113 @@
+package moe.mewore.imagediary;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the image data and thumbnail rasters of the days of a diary within a memory budget by making the least
+ * recently used days release them. The released data is loaded again when it is needed. The weight of each day is
+ * its {@link ImageDay#getSize()} estimate.
+ */
+public class ImageDayCache {
+
+    private final long budget;
+
+    private final Map<LocalImageDay, Long> weights = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalWeight = 0L;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param budget The number of bytes that the data of the days should fit in.
+     */
+    public ImageDayCache(final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("The budget of an image day cache cannot be negative: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    public static ImageDayCache unbounded() {
+        return new ImageDayCache(Long.MAX_VALUE);
+    }
+
+    /**
+     * Marks the day as the most recently used one and evicts the data of the least recently used days if the budget
+     * has been exceeded. It must not be called while holding any lock of a day.
+     */
+    void touch(final LocalImageDay day) {
+        final long weight = day.getSize();
+        final List<LocalImageDay> evictedDays = new ArrayList<>();
+        synchronized (weights) {
+            final Long previousWeight = weights.put(day, weight);
+            if (previousWeight == null) {
+                missCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+                totalWeight -= previousWeight;
+            }
+            totalWeight += weight;
+
+            final Iterator<Map.Entry<LocalImageDay, Long>> iterator = weights.entrySet().iterator();
+            while (totalWeight > budget && iterator.hasNext()) {
+                final Map.Entry<LocalImageDay, Long> entry = iterator.next();
+                if (entry.getKey() != day) {
+                    totalWeight -= entry.getValue();
+                    evictedDays.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        evictionCount.addAndGet(evictedDays.size());
+        for (final LocalImageDay evictedDay : evictedDays) {
+            evictedDay.evictData();
+        }
+    }
+
+    void remove(final LocalImageDay day) {
+        synchronized (weights) {
+            final Long weight = weights.remove(day);
+            if (weight != null) {
+                totalWeight -= weight;
+            }
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return The total weight of the days whose data is currently loaded, as of the last time they were used.
+     */
+    public long getWeight() {
+        synchronized (weights) {
+            return totalWeight;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d KB used, %d hits, %d misses, %d evictions", getWeight() / 1024L,
+                budget == Long.MAX_VALUE ? -1 : budget / 1024L, getHitCount(), getMissCount(), getEvictionCount());
+    }
+}
@@ -15,6 +15,48 @@ public interface ImageDiary {
 
     @Nullable ImageDay getDay(String name);
 
+    /**
+     * @return The days in the "YYYY-MM" month, from the newest to the oldest.
+     */
+    List<ImageDay> getDaysInMonthReversed(String month);
+
+    /**
+     * @return The days between the two "YYYY-MM-DD" dates, including them, from the newest to the oldest.
+     */
+    List<ImageDay> getDaysBetweenReversed(String fromDate, String toDate);
+
+    /**
+     * @return The first day after the date, which does not have to be a day in the diary.
+     */
+    @Nullable ImageDay getNextDay(String date);
+
+    /**
+     * @return The last day before the date, which does not have to be a day in the diary.
+     */
+    @Nullable ImageDay getPreviousDay(String date);
+
+    /**
+     * @return The first month after the "YYYY-MM" month which has any days.
+     */
+    @Nullable String getNextMonth(String month);
+
+    /**
+     * @return The last month before the "YYYY-MM" month which has any days.
+     */
+    @Nullable String getPreviousMonth(String month);
+
+    /**
+     * @return The number of images in each month, which is kept up to date as the days change instead of being
+     * counted again every time.
+     */
+    MonthIndex getMonthIndex();
+
+    /**
+     * Persists what is known about the days of the diary so that a later instance of it can reuse it instead of
+     * reading everything again.
+     */
+    void saveIndex();
+
     /**
      * @return An estimate of the memory this diary takes up in bytes.
      */
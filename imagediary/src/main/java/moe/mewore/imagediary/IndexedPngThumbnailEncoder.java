@@ -0,0 +1,128 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reduces the colors of the thumbnail to the 255 most common ones (after dropping the lowest 3 bits of every channel)
+ * and a transparent one, and writes it as a PNG with a palette.
+ */
+class IndexedPngThumbnailEncoder implements ThumbnailEncoder {
+
+    private static final int BITS_PER_CHANNEL = 5;
+
+    private static final int BUCKET_COUNT = 1 << (BITS_PER_CHANNEL * 3);
+
+    private static final int MAX_COLOR_COUNT = 255;
+
+    @Override
+    public String getFileExtension() {
+        return "png";
+    }
+
+    @Override
+    public String getSignature() {
+        return "indexed-png";
+    }
+
+    @Override
+    public byte @Nullable [] encode(final BufferedImage thumbnail) throws IOException {
+        final int width = thumbnail.getWidth();
+        final int height = thumbnail.getHeight();
+        final int[] pixels = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+
+        final int[] counts = new int[BUCKET_COUNT];
+        final long[] redSums = new long[BUCKET_COUNT];
+        final long[] greenSums = new long[BUCKET_COUNT];
+        final long[] blueSums = new long[BUCKET_COUNT];
+        for (final int pixel : pixels) {
+            if (isTransparent(pixel)) {
+                continue;
+            }
+            final int bucket = getBucket(pixel);
+            counts[bucket]++;
+            redSums[bucket] += (pixel >> 16) & 0xff;
+            greenSums[bucket] += (pixel >> 8) & 0xff;
+            blueSums[bucket] += pixel & 0xff;
+        }
+
+        // The most common buckets become the palette, with the average color of their pixels
+        final Integer[] buckets = new Integer[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = i;
+        }
+        Arrays.sort(buckets, (first, second) -> Integer.compare(counts[second], counts[first]));
+        int colorCount = 0;
+        while (colorCount < MAX_COLOR_COUNT && counts[buckets[colorCount]] > 0) {
+            colorCount++;
+        }
+        final byte[] reds = new byte[colorCount + 1];
+        final byte[] greens = new byte[colorCount + 1];
+        final byte[] blues = new byte[colorCount + 1];
+        final byte[] alphas = new byte[colorCount + 1];
+        final int[] paletteColors = new int[colorCount];
+        for (int i = 0; i < colorCount; i++) {
+            final int bucket = buckets[i];
+            final int red = (int) (redSums[bucket] / counts[bucket]);
+            final int green = (int) (greenSums[bucket] / counts[bucket]);
+            final int blue = (int) (blueSums[bucket] / counts[bucket]);
+            // Index 0 is the transparent color
+            reds[i + 1] = (byte) red;
+            greens[i + 1] = (byte) green;
+            blues[i + 1] = (byte) blue;
+            alphas[i + 1] = (byte) 0xff;
+            paletteColors[i] = red << 16 | green << 8 | blue;
+        }
+
+        // Every bucket is mapped to the closest color of the palette only the first time one of its pixels is met
+        final int[] bucketIndices = new int[BUCKET_COUNT];
+        final IndexColorModel colorModel = new IndexColorModel(8, colorCount + 1, reds, greens, blues, alphas);
+        final BufferedImage indexedThumbnail =
+                new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        final byte[] indices = ((DataBufferByte) indexedThumbnail.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            final int pixel = pixels[i];
+            if (isTransparent(pixel)) {
+                continue;
+            }
+            final int bucket = getBucket(pixel);
+            if (bucketIndices[bucket] == 0) {
+                bucketIndices[bucket] = getClosestColor(pixel, paletteColors) + 1;
+            }
+            indices[i] = (byte) bucketIndices[bucket];
+        }
+        return PngThumbnailEncoder.write(indexedThumbnail, "png", null);
+    }
+
+    private static boolean isTransparent(final int pixel) {
+        return (pixel >>> 24) < 0x80;
+    }
+
+    private static int getBucket(final int pixel) {
+        final int shift = 8 - BITS_PER_CHANNEL;
+        return ((pixel >> 16) & 0xff) >> shift << (BITS_PER_CHANNEL * 2) |
+                ((pixel >> 8) & 0xff) >> shift << BITS_PER_CHANNEL | (pixel & 0xff) >> shift;
+    }
+
+    private static int getClosestColor(final int pixel, final int[] paletteColors) {
+        int closestIndex = 0;
+        int closestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < paletteColors.length; i++) {
+            final int redDifference = ((pixel >> 16) & 0xff) - ((paletteColors[i] >> 16) & 0xff);
+            final int greenDifference = ((pixel >> 8) & 0xff) - ((paletteColors[i] >> 8) & 0xff);
+            final int blueDifference = (pixel & 0xff) - (paletteColors[i] & 0xff);
+            final int distance = redDifference * redDifference + greenDifference * greenDifference +
+                    blueDifference * blueDifference;
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closestIndex = i;
+            }
+        }
+        return closestIndex;
+    }
+}
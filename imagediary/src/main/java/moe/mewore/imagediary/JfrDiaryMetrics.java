@@ -0,0 +1,82 @@
+package moe.mewore.imagediary;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Passes everything on to another {@link DiaryMetrics} and also commits a JDK Flight Recorder event for each operation
+ * and count, so that they can be seen next to the GC pauses and the other events of the JVM. While no recording is
+ * running, the events are not even created.
+ */
+public class JfrDiaryMetrics implements DiaryMetrics {
+
+    private final DiaryMetrics delegate;
+
+    public JfrDiaryMetrics(final DiaryMetrics delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void recordLatency(final DiaryOperation operation, final long nanos) {
+        delegate.recordLatency(operation, nanos);
+        if (OperationEvent.TYPE.isEnabled()) {
+            final OperationEvent event = new OperationEvent();
+            if (event.shouldCommit()) {
+                event.operation = operation.name();
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public void count(final DiaryCounter counter, final long amount) {
+        delegate.count(counter, amount);
+        if (CounterEvent.TYPE.isEnabled()) {
+            final CounterEvent event = new CounterEvent();
+            if (event.shouldCommit()) {
+                event.counter = counter.name();
+                event.amount = amount;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("moe.mewore.imagediary.Operation")
+    @Label("Image Diary Operation")
+    @Category("Image Diary")
+    @StackTrace(false)
+    private static final class OperationEvent extends Event {
+
+        private static final EventType TYPE = EventType.getEventType(OperationEvent.class);
+
+        @Label("Operation")
+        String operation = "";
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("moe.mewore.imagediary.Counter")
+    @Label("Image Diary Counter")
+    @Description("An amount counted by an image diary, e.g. a number of decoded bytes")
+    @Category("Image Diary")
+    @StackTrace(false)
+    private static final class CounterEvent extends Event {
+
+        private static final EventType TYPE = EventType.getEventType(CounterEvent.class);
+
+        @Label("Counter")
+        String counter = "";
+
+        @Label("Amount")
+        long amount;
+    }
+}
@@ -0,0 +1,39 @@
+package moe.mewore.imagediary;
+
+import lombok.RequiredArgsConstructor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+@RequiredArgsConstructor
+class JpegThumbnailEncoder implements ThumbnailEncoder {
+
+    private final float quality;
+
+    @Override
+    public String getFileExtension() {
+        return "jpg";
+    }
+
+    @Override
+    public String getSignature() {
+        return "jpeg:" + quality;
+    }
+
+    @Override
+    public byte @Nullable [] encode(final BufferedImage thumbnail) throws IOException {
+        final int width = thumbnail.getWidth();
+        final int height = thumbnail.getHeight();
+        final BufferedImage opaqueThumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[] pixels = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < pixels.length; i++) {
+            // The cells are opaque, so only the empty ones (which are fully transparent) lose their alpha
+            if ((pixels[i] >>> 24) == 0) {
+                pixels[i] = 0;
+            }
+        }
+        opaqueThumbnail.setRGB(0, 0, width, height, pixels, 0, width);
+        return PngThumbnailEncoder.write(opaqueThumbnail, "jpeg", quality);
+    }
+}
@@ -2,174 +2,560 @@ package moe.mewore.imagediary;
 
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
-import lombok.Synchronized;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.geom.*;
 import java.awt.image.*;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
 public class LocalImageDay implements ImageDay {
 
     private static final long REFRESH_COOLDOWN_MS = TimeUnit.MINUTES.toMillis(1);
 
+    /**
+     * An estimate of the memory which a day takes up regardless of its images and events - its fields, locks and the
+     * objects of its directory.
+     */
+    private static final long DAY_OVERHEAD = 600L;
+
     public static final int THUMBNAIL_WIDTH = 96;
     public static final int THUMBNAIL_HEIGHT = 128;
     private static final int[] THUMBNAIL_ZEROES = new int[THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT];
 
-    private static final Predicate<String> DIRECTORY_NAME_TEST =
-            Pattern.compile("\\d{4}-\\d{2}-\\d{2}").asMatchPredicate();
-
-    private static final Pattern IMAGE_NAME_PATTERN = Pattern.compile("^.+-(\\d{4}-\\d{2}-\\d{2})-(\\d\\d?)\\.png$");
-
-    private static final Pattern EVENT_NAME_PATTERN = Pattern.compile("event-(\\d{4}-\\d{2}-\\d{2})-(\\d\\d?)\\.txt$");
-
     private final File dayDirectory;
 
     private final ReadFileFunction<BufferedImage> readImageFunction;
 
     private final ReadFileFunction<String> readTextFileFunction;
 
-    private final File[] imageFiles = new File[24];
-    private final byte[][] imageData = new byte[24][];
-    private final long[] imageFilesLastModified = new long[24];
-    private byte[] thumbnailData;
-    private final BufferedImage thumbnail =
-            new BufferedImage(THUMBNAIL_WIDTH * 24, THUMBNAIL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
-    private final Graphics2D thumbnailGraphics = thumbnail.createGraphics();
+    private final DiaryIndex index;
+
+    private final LocalImageDiaryOptions options;
+
+    /**
+     * Called whenever the images of the day may have been added or removed, for example to count them again.
+     */
+    private final Runnable imageMaskListener;
+
+    /**
+     * The state of the day as of its last refresh. Readers only ever read it, so they never wait for a refresh;
+     * a refresh builds the next snapshot on the side and replaces it at once. It is null until the first refresh.
+     */
+    private final AtomicReference<@Nullable Snapshot> snapshot = new AtomicReference<>(null);
 
-    private final AtomicInteger eventMask = new AtomicInteger();
-    private final String[] events = new String[24];
+    /**
+     * Makes the accessors which come while the day is being refreshed share the same refresh.
+     */
+    private final SingleFlight refreshFlight = new SingleFlight();
+
+    /**
+     * Held while refreshing, which is the only time that the fields below it are modified.
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * The raster which the thumbnail cells are drawn on. It is created only when something needs to be drawn on it;
+     * until then, the encoded thumbnail of the snapshot is the only source of the thumbnail.
+     */
+    private @Nullable BufferedImage thumbnail;
+    private volatile boolean thumbnailFileUpToDate = false;
+    private boolean indexChecked = false;
 
     private long lastRefreshedImagesAt = 0L;
     private long lastRefreshedEventsAt = 0L;
 
+    /**
+     * The listing of the directory made during the current refresh, which its images and events share.
+     */
+    private @Nullable DayListing refreshListing;
+
+    /**
+     * The listing made to find the image mask before the first refresh, which the first refresh can reuse if it is
+     * recent enough.
+     */
+    private volatile @Nullable DayListing unrefreshedListing;
+
+    /*
+     * When the day is being watched, its directory is listed again only when something in it has changed.
+     */
+    private volatile boolean imagesChanged = true;
+    private volatile boolean eventsChanged = true;
+
+    /**
+     * The hours whose events have changed and have to be read again during the next refresh.
+     */
+    private final AtomicInteger changedEventMask = new AtomicInteger();
+
+    /**
+     * The image mask of the latest listing made before the first refresh, or -1 if there has not been one.
+     */
+    private final AtomicInteger unrefreshedImageMask = new AtomicInteger(-1);
+
+    private final Object imageMaskLock = new Object();
+    /**
+     * The image mask, kept up to date by the changes in the directory, or -1 if it has to be determined by listing it.
+     */
+    private int watchedImageMask = -1;
+    private long imageChangeCount = 0L;
+
     @Override
-    public synchronized void refresh() {
-        refreshImages();
-        refreshEvents();
+    public void refresh() {
+        refreshFlight.run(this::refreshNow, true);
+        options.getCache().touch(this);
+    }
+
+    private void refreshNow() {
+        lockForRefresh();
+        try {
+            refreshLocked();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private void lockForRefresh() {
+        final long startedAt = options.getMetrics().startTimer();
+        refreshLock.lock();
+        options.getMetrics().stopTimer(DiaryOperation.LOCK_WAIT, startedAt);
+    }
+
+    private void refreshLocked() {
+        final long startedAt = options.getMetrics().startTimer();
+        final Snapshot previous = getSnapshotOrEmpty();
+        try {
+            publish(previous, refreshEvents(refreshImages(previous)));
+        } finally {
+            refreshListing = null;
+        }
+        options.getMetrics().stopTimer(DiaryOperation.REFRESH_DAY, startedAt);
+        options.getMetrics().count(DiaryCounter.DAY_REFRESHES, 1L);
+    }
+
+    private void publish(final Snapshot previous, final Snapshot next) {
+        if (next != previous) {
+            snapshot.set(next);
+            if (next.imageMask != previous.imageMask) {
+                imageMaskListener.run();
+            }
+        }
+    }
+
+    /**
+     * @return The latest snapshot, after refreshing it if it is due. If someone else is refreshing it already, their
+     * refresh is waited for only if there is no snapshot yet or the options say so. A manually refreshed day is
+     * refreshed here only if there is no snapshot yet.
+     */
+    private Snapshot getFreshSnapshot() {
+        final @Nullable Snapshot current = snapshot.get();
+        if (current != null && options.getRefreshMode() == RefreshMode.MANUAL) {
+            return current;
+        }
+        final boolean wait =
+                snapshot.get() == null || options.getConcurrentRefreshMode() == ConcurrentRefreshMode.WAIT;
+        refreshFlight.run(this::refreshNow, wait);
+        options.getCache().touch(this);
+        return getSnapshotOrEmpty();
+    }
+
+    private Snapshot getSnapshotOrEmpty() {
+        final @Nullable Snapshot current = snapshot.get();
+        return current == null ? Snapshot.EMPTY : current;
     }
 
     @Override
-    public synchronized void createThumbnailFile() {
-        final File thumbnailFile = dayDirectory.toPath().resolve("thumbnail.png").toFile();
-        if (!thumbnailFile.isFile()) {
-            refresh();
+    public boolean createThumbnailFile() {
+        lockForRefresh();
+        final boolean saved;
+        try {
+            refreshLocked();
+            saved = saveThumbnailFile();
+        } finally {
+            refreshLock.unlock();
+        }
+        options.getCache().touch(this);
+        return saved;
+    }
+
+    /**
+     * @return Whether the thumbnail file is up to date.
+     */
+    private boolean saveThumbnailFile() {
+        Snapshot current = getSnapshotOrEmpty();
+        final File thumbnailFile = getThumbnailFile();
+        if (!thumbnailFileUpToDate || !thumbnailFile.isFile()) {
             System.out.println("Saving thumbnail: " + thumbnailFile.getAbsolutePath());
+            if (thumbnailFileUpToDate && current.thumbnailData.get() == null) {
+                // The thumbnail was released because it could be read from its file, which is gone now. It is drawn
+                // again from all images, even if the day has just been refreshed or nothing in it has changed.
+                final Snapshot redrawn;
+                try {
+                    redrawn = reloadImages(current.withoutImages());
+                } finally {
+                    refreshListing = null;
+                }
+                if (redrawn.thumbnailData.get() == null) {
+                    System.err.println("Cannot create thumbnail because it could not be drawn again: " +
+                                       thumbnailFile.getAbsolutePath());
+                    return false;
+                }
+                publish(current, redrawn);
+                current = redrawn;
+            }
+            final byte @Nullable [] thumbnailData = current.thumbnailData.get();
+            if (thumbnailData == null) {
+                System.err.println("Cannot create thumbnail because it could not be encoded: " +
+                                   thumbnailFile.getAbsolutePath());
+                return false;
+            }
             try {
-                ImageIO.write(thumbnail, "png", thumbnailFile);
+                Files.write(thumbnailFile.toPath(), thumbnailData);
             } catch (final IOException e) {
                 System.err.println("Failed to create thumbnail: " + thumbnailFile.getAbsolutePath());
                 e.printStackTrace();
+                return false;
             }
+            thumbnailFileUpToDate = true;
         }
+        index.putDay(new DiaryIndex.DayEntry(getDate(), options.getThumbnailEncoder().getSignature(),
+                thumbnailFile.length(), thumbnailFile.lastModified(), current.expandImageEntries()));
+        return true;
     }
 
-    @Synchronized("imageFiles")
     @Override
     public byte @Nullable [] getImageData(final int hour) {
-        refreshImages();
-        if (hour < 0 || hour >= imageFiles.length) {
-            throw new IllegalArgumentException(
-                    "The hour " + hour + " is outside of the allowed range: 0-" + (imageFiles.length - 1));
+        if (options.getImageDataMode() == ImageDataMode.REENCODED) {
+            return getReencodedImageData(hour);
+        }
+        final @Nullable ByteBuffer buffer = getImageBuffer(hour);
+        if (buffer == null) {
+            return null;
+        }
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Override
+    public @Nullable ByteBuffer getImageBuffer(final int hour) {
+        if (options.getImageDataMode() == ImageDataMode.REENCODED) {
+            final byte @Nullable [] data = getReencodedImageData(hour);
+            return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+        checkHour(hour);
+        final @Nullable String imageFileName = getFreshSnapshot().getImageFileName(hour);
+        if (imageFileName == null) {
+            return null;
+        }
+        final Path imageFile = dayDirectory.toPath().resolve(imageFileName);
+        try (final FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public long getImageLastModified(final int hour) {
+        checkHour(hour);
+        return getFreshSnapshot().getImageFileLastModified(hour);
+    }
+
+    @Override
+    public @Nullable DiaryFile openImageFile(final int hour) {
+        checkHour(hour);
+        final @Nullable String imageFileName = getFreshSnapshot().getImageFileName(hour);
+        return imageFileName == null ? null : DiaryFile.open(dayDirectory.toPath().resolve(imageFileName));
+    }
+
+    private byte @Nullable [] getReencodedImageData(final int hour) {
+        checkHour(hour);
+        final Snapshot current = getFreshSnapshot();
+        final byte @Nullable [] data = current.getImageData(hour);
+        final @Nullable String imageFileName = current.getImageFileName(hour);
+        if (data != null || imageFileName == null) {
+            if (data != null) {
+                options.getMetrics().count(DiaryCounter.IMAGE_DATA_HITS, 1L);
+            }
+            return data;
+        }
+        options.getMetrics().count(DiaryCounter.IMAGE_DATA_MISSES, 1L);
+        // The image has been taken from the index or evicted so it has not been read yet. If it is being read by
+        // someone else at the same time, it is simply read twice.
+        final byte @Nullable [] readData;
+        try {
+            readData = readImageData(readImageFunction.apply(new File(dayDirectory, imageFileName)));
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        current.cacheImageData(hour, readData);
+        options.getCache().touch(this);
+        return readData;
+    }
+
+    private static void checkHour(final int hour) {
+        if (hour < 0 || hour >= 24) {
+            throw new IllegalArgumentException("The hour " + hour + " is outside of the allowed range: 0-23");
         }
-        return imageData[hour];
     }
 
-    @Synchronized("events")
     @Override
     public @Nullable String getEvent(final int hour) {
-        refreshEvents();
-        if (hour < 0 || hour >= events.length) {
-            throw new IllegalArgumentException(
-                    "The hour " + hour + " is outside of the allowed range: 0-" + (events.length - 1));
+        checkHour(hour);
+        return getFreshSnapshot().getEvent(hour);
+    }
+
+    /**
+     * @return The next snapshot with the current images, or the previous one if it is not time to refresh yet.
+     */
+    private Snapshot refreshImages(final Snapshot previous) {
+        if (isWatched()) {
+            if (!imagesChanged) {
+                return previous;
+            }
+            imagesChanged = false;
+        } else if (options.getRefreshMode() == RefreshMode.POLLING) {
+            final long now = System.currentTimeMillis();
+            if (now < lastRefreshedImagesAt + REFRESH_COOLDOWN_MS) {
+                return previous;
+            }
+            lastRefreshedImagesAt = System.currentTimeMillis();
         }
-        return events[hour];
+        return reloadImages(previous);
     }
 
-    @Synchronized("imageFiles")
-    private void refreshImages() {
-        final long now = System.currentTimeMillis();
-        if (now < lastRefreshedImagesAt + REFRESH_COOLDOWN_MS) {
-            return;
+    /**
+     * @return The next snapshot with the current images, whether or not it is time to refresh them.
+     */
+    private Snapshot reloadImages(final Snapshot previous) {
+        // Modified as arrays with an element for every hour and compacted into the next snapshot at the end
+        final @Nullable String[] imageFileNames = new String[24];
+        final long[] imageFilesLastModified = new long[24];
+        final DiaryIndex.@Nullable ImageEntry[] imageEntries = new DiaryIndex.ImageEntry[24];
+        final byte @Nullable [][] imageData = new byte[24][];
+        for (int hour = 0; hour < 24; hour++) {
+            imageFileNames[hour] = previous.getImageFileName(hour);
+            imageFilesLastModified[hour] = previous.getImageFileLastModified(hour);
+            imageEntries[hour] = previous.getImageEntry(hour);
+        }
+        AtomicReference<byte @Nullable []> thumbnailData = previous.thumbnailData;
+        long thumbnailVersion = previous.thumbnailVersion;
+
+        final DiaryIndex.@Nullable DayEntry indexedDay = takeIndexedDay();
+        if (indexedDay != null) {
+            // The thumbnail file is read only if the thumbnail is needed
+            thumbnailData = new AtomicReference<>(null);
+            thumbnailVersion++;
+            thumbnailFileUpToDate = true;
         }
-        lastRefreshedImagesAt = System.currentTimeMillis();
-        final AtomicInteger imageMask = new AtomicInteger(0);
-        final File @Nullable [] newImageFiles = dayDirectory.listFiles(this::isImage);
-        if (newImageFiles == null || newImageFiles.length == 0) {
+        final int previousImageMask = (indexedDay == null ? 0 : indexedDay.getImageMask()) | previous.loadedImageMask;
+
+        int imageMask = 0;
+        int hoursToDecode = 0;
+        int indexedHours = 0;
+        final @Nullable DayListing listing = getRefreshListing();
+        if (listing == null || listing.imageMask == 0) {
             System.err.println("Could not fetch any images in image day directory " + dayDirectory.getAbsolutePath());
         } else {
-            Arrays.stream(newImageFiles).parallel().forEach(imageFile -> registerImage(imageFile, imageMask));
+            imageMask = listing.imageMask;
+            for (int index = 0; index < 24; index++) {
+                final @Nullable String imageFileName = listing.getImageFileName(index);
+                if (imageFileName == null) {
+                    continue;
+                }
+                final long lastModified = listing.getImageFileLastModified(index);
+                if (imageFileName.equals(imageFileNames[index]) && imageFilesLastModified[index] == lastModified) {
+                    imageData[index] = previous.getImageData(index);
+                    continue;
+                }
+                final DiaryIndex.@Nullable ImageEntry indexedImage =
+                        indexedDay == null || imageFileNames[index] != null ? null : indexedDay.getImage(index);
+                final File imageFile = new File(dayDirectory, imageFileName);
+                if (indexedImage != null &&
+                        indexedImage.matches(imageFile, listing.getImageFileSize(index), lastModified)) {
+                    imageFileNames[index] = imageFileName;
+                    imageFilesLastModified[index] = lastModified;
+                    imageEntries[index] = indexedImage.withLastModified(lastModified);
+                    indexedHours |= 1 << index;
+                    continue;
+                }
+                hoursToDecode |= 1 << index;
+            }
         }
-        for (int i = 0; i < 24; i++) {
-            if ((imageMask.get() & (1 << i)) == 0) {
-                imageFiles[i] = null;
-                imageFilesLastModified[i] = 0;
-                thumbnail.setRGB(i * THUMBNAIL_WIDTH, 0, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, THUMBNAIL_ZEROES, 0, 0);
+
+        final int removedImageMask = previousImageMask & ~imageMask;
+        if (hoursToDecode != 0 || removedImageMask != 0 || thumbnailVersion == 0L) {
+            // The cells of the images taken from the index are only in the thumbnail file which the listing has matched
+            final byte @Nullable [] savedThumbnailData =
+                    indexedHours != 0 && thumbnail == null ? readThumbnailFile() : loadThumbnailData(previous);
+            if (indexedHours != 0 && savedThumbnailData == null) {
+                hoursToDecode |= indexedHours;
             }
+            final BufferedImage currentThumbnail = decodeThumbnail(savedThumbnailData);
+            // The images are drawn into the same raster, so many days should be refreshed in parallel instead
+            for (int index = 0; index < 24; index++) {
+                if ((hoursToDecode & (1 << index)) == 0 || listing == null) {
+                    continue;
+                }
+                final String imageFileName = Objects.requireNonNull(listing.getImageFileName(index));
+                currentThumbnail.setRGB(THUMBNAIL_WIDTH * index, 0, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                        THUMBNAIL_ZEROES, 0, 0);
+                final @Nullable BufferedImage image = registerImage(new File(dayDirectory, imageFileName),
+                        listing.getImageFileSize(index), listing.getImageFileLastModified(index), index,
+                        currentThumbnail, imageEntries);
+                if (image != null) {
+                    imageFileNames[index] = imageFileName;
+                    imageFilesLastModified[index] = imageEntries[index].getLastModified();
+                    imageData[index] = options.getImageDataMode() == ImageDataMode.REENCODED ? readImageData(image) :
+                            null;
+                }
+            }
+            for (int i = 0; i < 24; i++) {
+                if ((imageMask & (1 << i)) == 0) {
+                    imageFileNames[i] = null;
+                    imageFilesLastModified[i] = 0;
+                    imageEntries[i] = null;
+                    imageData[i] = null;
+                    currentThumbnail.setRGB(i * THUMBNAIL_WIDTH, 0, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                            THUMBNAIL_ZEROES, 0, 0);
+                }
+            }
+            thumbnailData = new AtomicReference<>(encodeThumbnail(currentThumbnail));
+            thumbnailVersion++;
+            thumbnailFileUpToDate = false;
         }
-        thumbnailData = readImageData(thumbnail);
+        return Snapshot.ofImages(imageMask, imageFileNames, imageFilesLastModified, imageEntries, imageData,
+                thumbnailData, thumbnailVersion, previous);
     }
 
-    private void registerImage(final File imageFile, final AtomicInteger imageMask) {
-        final Matcher nameMatcher = IMAGE_NAME_PATTERN.matcher(imageFile.getName());
-        if (!nameMatcher.find()) {
-            System.err.println("WTF?! File " + imageFile.getName() + " does not match the image file pattern?!");
-            return;
+    /**
+     * Takes the entry of this day from the index, the first time this is called. Its images can be reused only if
+     * the thumbnail file is the same one that was saved along with the entry.
+     *
+     * @return The entry of this day in the index, if it can be used.
+     */
+    private DiaryIndex.@Nullable DayEntry takeIndexedDay() {
+        if (indexChecked) {
+            return null;
         }
-        final int index = Integer.parseInt(nameMatcher.group(2));
-        final long lastModified = imageFile.lastModified();
-        imageMask.updateAndGet(value -> value | (1 << index));
-        if (imageFiles[index] != null) {
-            if (imageFilesLastModified[index] == lastModified) {
-                return;
-            } else {
-                thumbnail.setRGB(THUMBNAIL_WIDTH * index, 0, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, THUMBNAIL_ZEROES, 0, 0);
+        indexChecked = true;
+        final DiaryIndex.@Nullable DayEntry indexedDay = index.getDay(getDate());
+        final @Nullable DayListing listing = indexedDay == null ? null : getRefreshListing();
+        if (indexedDay == null || listing == null || !indexedDay.matchesThumbnail(listing.thumbnailFileSize,
+                listing.thumbnailFileLastModified, options.getThumbnailEncoder().getSignature())) {
+            return null;
+        }
+        return indexedDay;
+    }
+
+    /**
+     * @return The listing of the directory for the current refresh, which is made the first time it is needed during
+     * the refresh, or null if the directory could not be listed.
+     */
+    private @Nullable DayListing getRefreshListing() {
+        if (refreshListing != null) {
+            return refreshListing;
+        }
+        final @Nullable DayListing recentListing = unrefreshedListing;
+        unrefreshedListing = null;
+        if (recentListing != null && options.getRefreshMode() == RefreshMode.POLLING &&
+                System.currentTimeMillis() < recentListing.listedAt + REFRESH_COOLDOWN_MS) {
+            refreshListing = recentListing;
+        } else {
+            refreshListing = listDirectory();
+        }
+        return refreshListing;
+    }
+
+    private @Nullable DayListing listDirectory() {
+        final long startedAt = options.getMetrics().startTimer();
+        final @Nullable DayListing listing = DayListing.list(dayDirectory.toPath(), getDate(), getThumbnailFileName());
+        options.getMetrics().stopTimer(DiaryOperation.LIST_FILES, startedAt);
+        return listing;
+    }
+
+    /**
+     * Creates {@link #thumbnail} if it does not exist, drawing the encoded thumbnail into it so that it can be
+     * modified.
+     */
+    private BufferedImage decodeThumbnail(final byte @Nullable [] thumbnailData) {
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        final BufferedImage newThumbnail =
+                new BufferedImage(THUMBNAIL_WIDTH * 24, THUMBNAIL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        thumbnail = newThumbnail;
+        if (thumbnailData == null) {
+            return newThumbnail;
+        }
+        try {
+            final @Nullable BufferedImage savedThumbnail = ImageIO.read(new ByteArrayInputStream(thumbnailData));
+            if (savedThumbnail == null) {
+                return newThumbnail;
             }
+            final int width = Math.min(savedThumbnail.getWidth(), newThumbnail.getWidth());
+            final int height = Math.min(savedThumbnail.getHeight(), newThumbnail.getHeight());
+            newThumbnail.setRGB(0, 0, width, height, savedThumbnail.getRGB(0, 0, width, height, null, 0, width), 0,
+                    width);
+        } catch (final IOException e) {
+            e.printStackTrace();
         }
+        return newThumbnail;
+    }
+
+    /**
+     * Decodes the image, draws it into its cell of the thumbnail and records it in the image entries.
+     *
+     * @return The decoded image, or null if it could not be decoded.
+     */
+    private @Nullable BufferedImage registerImage(final File imageFile, final long size, final long lastModified,
+                                                  final int index, final BufferedImage target,
+                                                  final DiaryIndex.@Nullable ImageEntry[] imageEntries) {
+        final long startedAt = options.getMetrics().startTimer();
         final BufferedImage image;
+        final long hash;
         try {
             image = readImageFunction.apply(imageFile);
+            hash = DiaryIndex.computeHash(imageFile);
         } catch (final IOException e) {
             e.printStackTrace();
-            return;
+            return null;
         }
-        imageFiles[index] = imageFile;
-        imageData[index] = readImageData(image);
-        imageFilesLastModified[index] = lastModified;
-        final double horizontalScale = (double) THUMBNAIL_WIDTH / image.getWidth();
-        final double verticalScale = (double) THUMBNAIL_HEIGHT / image.getHeight();
-        final double scale = Math.max(horizontalScale, verticalScale);
-        final BufferedImage tmpThumbnail =
-                new BufferedImage((int) (THUMBNAIL_WIDTH / scale), (int) (THUMBNAIL_HEIGHT / scale),
-                        BufferedImage.TYPE_INT_RGB);
-        final AffineTransform emptyTransform = new AffineTransform(1, 0, 0, 1, 0, 0);
-        final AffineTransformOp emptyTransformOp =
-                new AffineTransformOp(emptyTransform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-        tmpThumbnail.createGraphics()
-                .drawImage(image, emptyTransformOp, (tmpThumbnail.getWidth() - image.getWidth()) / 2,
-                        (tmpThumbnail.getHeight() - image.getHeight()) / 2);
-
-        final AffineTransform transform = new AffineTransform(scale, 0, 0, scale, 0, 0);
-        final AffineTransformOp transformOp = new AffineTransformOp(transform, AffineTransformOp.TYPE_BICUBIC);
-        thumbnailGraphics.drawImage(tmpThumbnail, transformOp, THUMBNAIL_WIDTH * index, 0);
-    }
-
-    private static byte @Nullable [] readImageData(final BufferedImage image) {
+        final DiaryIndex.ImageEntry imageEntry = new DiaryIndex.ImageEntry(size, lastModified,
+                image.getWidth(), image.getHeight(), hash, THUMBNAIL_WIDTH * index);
+        imageEntries[index] = imageEntry;
+        ThumbnailScaler.scaleInto(image, target, THUMBNAIL_WIDTH * index, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+        options.getMetrics().stopTimer(DiaryOperation.REGISTER_IMAGE, startedAt);
+        options.getMetrics().count(DiaryCounter.IMAGES_DECODED, 1L);
+        options.getMetrics().count(DiaryCounter.BYTES_DECODED, imageEntry.getSize());
+        return image;
+    }
+
+    private byte @Nullable [] readImageData(final BufferedImage image) {
+        final long startedAt = options.getMetrics().startTimer();
         final ByteArrayOutputStream thumbnailBaos = new ByteArrayOutputStream();
         try {
             ImageIO.write(image, "png", thumbnailBaos);
+            options.getMetrics().stopTimer(DiaryOperation.READ_IMAGE_DATA, startedAt);
+            options.getMetrics().count(DiaryCounter.BYTES_ENCODED, thumbnailBaos.size());
             return thumbnailBaos.toByteArray();
         } catch (final IOException e) {
             e.printStackTrace();
@@ -181,76 +567,230 @@ public class LocalImageDay implements ImageDay {
         return null;
     }
 
-    @Synchronized("events")
-    private void refreshEvents() {
-        final long now = System.currentTimeMillis();
-        if (now < lastRefreshedEventsAt + REFRESH_COOLDOWN_MS) {
-            return;
-        }
-        lastRefreshedEventsAt = System.currentTimeMillis();
-        final File @Nullable [] eventFiles = dayDirectory.listFiles(this::isEvent);
-        if (eventFiles != null && eventFiles.length > 0) {
-            Arrays.stream(eventFiles).parallel().forEach(this::registerEvent);
-        }
-        for (int i = 0; i < 24; i++) {
-            if ((eventMask.get() & (1 << i)) == 0) {
-                events[i] = null;
+    private byte @Nullable [] encodeThumbnail(final BufferedImage currentThumbnail) {
+        final long startedAt = options.getMetrics().startTimer();
+        try {
+            final byte[] thumbnailData = options.getThumbnailEncoder().encode(currentThumbnail);
+            options.getMetrics().stopTimer(DiaryOperation.ENCODE_THUMBNAIL, startedAt);
+            options.getMetrics().count(DiaryCounter.BYTES_ENCODED, thumbnailData.length);
+            return thumbnailData;
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } catch (final IllegalStateException e) {
+            if (!"Shutdown in progress".equals(e.getMessage())) {
+                throw e;
             }
         }
+        return null;
     }
 
-    private void registerEvent(final File eventFile) {
-        final Matcher nameMatcher = EVENT_NAME_PATTERN.matcher(eventFile.getName());
-        if (!nameMatcher.find()) {
-            System.err.println("WTF?! File " + eventFile.getName() + " does not match the event file pattern?!");
-            return;
+    /**
+     * @return The next snapshot with the current events, or the previous one if it is not time to refresh yet.
+     */
+    private Snapshot refreshEvents(final Snapshot previous) {
+        if (isWatched()) {
+            if (!eventsChanged) {
+                return previous;
+            }
+            eventsChanged = false;
+        } else if (options.getRefreshMode() == RefreshMode.POLLING) {
+            final long now = System.currentTimeMillis();
+            if (now < lastRefreshedEventsAt + REFRESH_COOLDOWN_MS) {
+                return previous;
+            }
+            lastRefreshedEventsAt = System.currentTimeMillis();
         }
-        final int index = Integer.parseInt(nameMatcher.group(2));
-        if (events[index] == null) {
-            try {
-                events[index] = readTextFileFunction.apply(eventFile);
-            } catch (final IOException e) {
-                e.printStackTrace();
-                return;
+        final int changedMask = changedEventMask.getAndSet(0);
+        final @Nullable String[] events = new String[24];
+        int eventMask = 0;
+        final @Nullable DayListing listing = getRefreshListing();
+        for (int index = 0; index < 24 && listing != null; index++) {
+            final @Nullable String eventFileName = listing.getEventFileName(index);
+            if (eventFileName == null) {
+                continue;
             }
-            eventMask.updateAndGet(value -> value | (1 << index));
+            if ((previous.eventMask & ~changedMask & (1 << index)) != 0) {
+                events[index] = previous.getEvent(index);
+            } else {
+                try {
+                    events[index] = readTextFileFunction.apply(new File(dayDirectory, eventFileName));
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+            }
+            eventMask |= 1 << index;
         }
+        return previous.withEvents(eventMask, events);
     }
 
-    @Synchronized("imageFiles")
     @Override
     public byte[] getThumbnailData() {
-        refresh();
+        final byte @Nullable [] thumbnailData = loadThumbnailData(getFreshSnapshot());
+        options.getCache().touch(this);
         return thumbnailData;
     }
 
+    @Override
+    public @Nullable DiaryFile openThumbnailFile() {
+        // The day is refreshed first because the thumbnail file is out of date if its images have changed
+        getFreshSnapshot();
+        return thumbnailFileUpToDate ? DiaryFile.open(getThumbnailFile().toPath()) : null;
+    }
+
+    /**
+     * @return The encoded thumbnail of the snapshot, which is read from the thumbnail file if it has been released or
+     * has not been needed until now.
+     */
+    private byte @Nullable [] loadThumbnailData(final Snapshot current) {
+        final byte @Nullable [] thumbnailData = current.thumbnailData.get();
+        if (thumbnailData != null || current.thumbnailVersion == 0L || !thumbnailFileUpToDate) {
+            return thumbnailData;
+        }
+        final byte @Nullable [] readData = readThumbnailFile();
+        if (readData != null) {
+            current.thumbnailData.compareAndSet(null, readData);
+        }
+        return readData;
+    }
+
+    private byte @Nullable [] readThumbnailFile() {
+        try {
+            return Files.readAllBytes(getThumbnailFile().toPath());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Releases the data which can be loaded again - the image data, the thumbnail raster and the encoded thumbnail if
+     * it has been saved. The thumbnail is kept if the day is being refreshed at the moment.
+     */
+    void evictData() {
+        final @Nullable Snapshot current = snapshot.get();
+        if (current != null) {
+            current.releaseImageData();
+        }
+        if (refreshLock.tryLock()) {
+            try {
+                thumbnail = null;
+                if (current != null && current == snapshot.get() && thumbnailFileUpToDate) {
+                    current.thumbnailData.set(null);
+                }
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+    }
+
     @Override
     public int getImageMask() {
-        final File @Nullable [] currentImageFiles = dayDirectory.listFiles(this::isImage);
-        if (currentImageFiles == null || currentImageFiles.length == 0) {
-            System.err.println("Could not fetch any images in image day directory " + dayDirectory.getAbsolutePath());
-            return 0;
+        if (snapshot.get() != null) {
+            return getFreshSnapshot().imageMask;
         }
-        int imageMask = 0;
-        for (final File imageFile : currentImageFiles) {
-            final Matcher nameMatcher = IMAGE_NAME_PATTERN.matcher(imageFile.getName());
-            if (nameMatcher.find()) {
-                imageMask |= (1 << Integer.parseInt(nameMatcher.group(2)));
+        final long changeCount;
+        synchronized (imageMaskLock) {
+            if (watchedImageMask >= 0) {
+                return watchedImageMask;
+            }
+            changeCount = imageChangeCount;
+        }
+        final int imageMask = listImageMask();
+        if (isWatched()) {
+            synchronized (imageMaskLock) {
+                // If anything has changed while listing, the result may already be out of date
+                if (imageChangeCount == changeCount) {
+                    watchedImageMask = imageMask;
+                }
             }
         }
         return imageMask;
     }
 
+    /**
+     * @return The image mask as of a listing of the directory, which is reused until it is as old as a refresh would
+     * have to be to list the directory again.
+     */
+    private int listImageMask() {
+        @Nullable DayListing listing = unrefreshedListing;
+        if (listing == null || System.currentTimeMillis() >= listing.listedAt + REFRESH_COOLDOWN_MS) {
+            listing = listDirectory();
+            unrefreshedListing = listing;
+        }
+        final int imageMask = listing == null ? 0 : listing.imageMask;
+        final int previousImageMask = unrefreshedImageMask.getAndSet(imageMask);
+        if (previousImageMask >= 0 && previousImageMask != imageMask) {
+            // The images may have been counted from the previous listing, which no snapshot is going to replace
+            imageMaskListener.run();
+        }
+        if (imageMask == 0) {
+            System.err.println("Could not fetch any images in image day directory " + dayDirectory.getAbsolutePath());
+        }
+        return imageMask;
+    }
+
+    /**
+     * Applies a change in the directory of the day, as reported by a {@link DiaryWatcher}.
+     *
+     * @param child The name of the changed file, or null if the whole directory should be considered changed.
+     */
+    void onFileChanged(final WatchEvent.Kind<?> kind, final @Nullable Path child) {
+        if (child == null) {
+            synchronized (imageMaskLock) {
+                imageChangeCount++;
+                watchedImageMask = -1;
+            }
+            imagesChanged = true;
+            imageMaskListener.run();
+            forgetEvents(0xFFFFFF);
+            return;
+        }
+        final String name = child.getFileName().toString();
+        final int imageHour = DayListing.parseImageHour(name, getDate());
+        if (imageHour >= 0) {
+            synchronized (imageMaskLock) {
+                imageChangeCount++;
+                if (watchedImageMask >= 0 && kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    watchedImageMask |= 1 << imageHour;
+                } else if (watchedImageMask >= 0 && kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    watchedImageMask &= ~(1 << imageHour);
+                }
+            }
+            imagesChanged = true;
+            imageMaskListener.run();
+            return;
+        }
+        final int eventHour = DayListing.parseEventHour(name, getDate());
+        if (eventHour >= 0) {
+            forgetEvents(1 << eventHour);
+        }
+    }
+
+    /**
+     * Makes the events in the hours of the mask be read again the next time the events are refreshed.
+     */
+    private void forgetEvents(final int mask) {
+        changedEventMask.getAndUpdate(value -> value | mask);
+        eventsChanged = true;
+    }
+
+    private boolean isWatched() {
+        return options.getRefreshMode() == RefreshMode.WATCHING;
+    }
+
+    File getDirectory() {
+        return dayDirectory;
+    }
+
     @Override
     public int getImageCount() {
         return Integer.bitCount(getImageMask());
     }
 
-    @Synchronized("events")
     @Override
     public int getEventMask() {
-        refresh();
-        return eventMask.get();
+        return getFreshSnapshot().eventMask;
     }
 
     @Override
@@ -266,9 +806,10 @@ public class LocalImageDay implements ImageDay {
 
     @Override
     public long getSize() {
-        return Arrays.stream(imageData)
-                .mapToLong(a -> a == null ? 0L : a.length)
-                .sum() + THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT * 4 * 2 + getDate().length() * 2L + 100;
+        final Snapshot current = getSnapshotOrEmpty();
+        final byte @Nullable [] thumbnailData = current.thumbnailData.get();
+        return current.getSize() + (thumbnail == null ? 0L : THUMBNAIL_WIDTH * 24L * THUMBNAIL_HEIGHT * 4L) +
+                (thumbnailData == null ? 0L : thumbnailData.length) + getDate().length() + DAY_OVERHEAD;
     }
 
     @Override
@@ -276,36 +817,188 @@ public class LocalImageDay implements ImageDay {
         return getDate().compareTo(other.getDate());
     }
 
-    private boolean isEvent(final File file) {
-        return matchesFilePattern(file, EVENT_NAME_PATTERN);
+    @Override
+    public String getThumbnailFileName() {
+        return "thumbnail." + options.getThumbnailEncoder().getFileExtension();
     }
 
-    private boolean isImage(final File file) {
-        return matchesFilePattern(file, IMAGE_NAME_PATTERN);
+    private File getThumbnailFile() {
+        return new File(dayDirectory, getThumbnailFileName());
     }
 
-    private boolean matchesFilePattern(final File file, final Pattern pattern) {
-        if (!file.isFile()) {
-            return false;
+    static boolean isDayDirectory(final File file) {
+        return file.isDirectory() && isDayDirectoryName(file.getName());
+    }
+
+    static boolean isDayDirectoryName(final String name) {
+        return DiaryDates.packDate(name) != DiaryDates.INVALID;
+    }
+
+    /**
+     * What a day looks like after a refresh. Only the hours which have an image or an event take up space in it, with
+     * the arrays holding one element for each of them in order. Nothing in it is modified after it has been published,
+     * except for the image and thumbnail data, which are only a cache of what can be read from the files.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    private static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(0, 0, new String[0], new long[0],
+                new DiaryIndex.ImageEntry[0], new AtomicReferenceArray<>(0), new AtomicReference<>(null), 0L, 0,
+                new String[0]);
+
+        /**
+         * The hours of the images which have been found, including the ones which could not be read.
+         */
+        private final int imageMask;
+        /**
+         * The hours of the images which have been read.
+         */
+        private final int loadedImageMask;
+        private final String[] imageFileNames;
+        private final long[] imageFilesLastModified;
+        private final DiaryIndex.ImageEntry[] imageEntries;
+        private final AtomicReferenceArray<byte @Nullable []> imageData;
+
+        private final AtomicReference<byte @Nullable []> thumbnailData;
+        /**
+         * Incremented every time the thumbnail is drawn again, so that it is encoded only when something has changed.
+         * It is 0 if the thumbnail has never been drawn or read.
+         */
+        private final long thumbnailVersion;
+
+        private final int eventMask;
+        private final String[] events;
+
+        /**
+         * Creates a snapshot with the images in the arrays, which have an element for every hour, and the events of
+         * another snapshot.
+         */
+        static Snapshot ofImages(final int imageMask, final @Nullable String[] imageFileNames,
+                                 final long[] imageFilesLastModified,
+                                 final DiaryIndex.@Nullable ImageEntry[] imageEntries,
+                                 final byte @Nullable [][] imageData,
+                                 final AtomicReference<byte @Nullable []> thumbnailData, final long thumbnailVersion,
+                                 final Snapshot eventSource) {
+            int loadedImageMask = 0;
+            for (int hour = 0; hour < 24; hour++) {
+                if (imageFileNames[hour] != null) {
+                    loadedImageMask |= 1 << hour;
+                }
+            }
+            final int loadedImageCount = Integer.bitCount(loadedImageMask);
+            final String[] compactFileNames = new String[loadedImageCount];
+            final long[] compactLastModified = new long[loadedImageCount];
+            final DiaryIndex.ImageEntry[] compactEntries = new DiaryIndex.ImageEntry[loadedImageCount];
+            final AtomicReferenceArray<byte @Nullable []> compactData = new AtomicReferenceArray<>(loadedImageCount);
+            for (int hour = 0, i = 0; hour < 24; hour++) {
+                final @Nullable String imageFileName = imageFileNames[hour];
+                final DiaryIndex.@Nullable ImageEntry imageEntry = imageEntries[hour];
+                if (imageFileName != null && imageEntry != null) {
+                    compactFileNames[i] = imageFileName;
+                    compactLastModified[i] = imageFilesLastModified[hour];
+                    compactEntries[i] = imageEntry;
+                    compactData.set(i, imageData[hour]);
+                    i++;
+                }
+            }
+            return new Snapshot(imageMask, loadedImageMask, compactFileNames, compactLastModified, compactEntries,
+                    compactData, thumbnailData, thumbnailVersion, eventSource.eventMask, eventSource.events);
         }
-        final Matcher nameMatcher = pattern.matcher(file.getName());
-        if (!nameMatcher.find()) {
-            return false;
+
+        /**
+         * @param events An array with an element for every hour.
+         */
+        Snapshot withEvents(final int newEventMask, final @Nullable String[] events) {
+            final String[] compactEvents = new String[Integer.bitCount(newEventMask)];
+            for (int hour = 0, i = 0; hour < 24; hour++) {
+                final @Nullable String event = events[hour];
+                if ((newEventMask & (1 << hour)) != 0 && event != null) {
+                    compactEvents[i++] = event;
+                }
+            }
+            return new Snapshot(imageMask, loadedImageMask, imageFileNames, imageFilesLastModified, imageEntries,
+                    imageData, thumbnailData, thumbnailVersion, newEventMask, compactEvents);
         }
-        return dayDirectory.getName().equals(nameMatcher.group(1)) && isHourIndex(nameMatcher.group(2));
-    }
 
-    private static boolean isHourIndex(final String str) {
-        final int value;
-        try {
-            value = Integer.parseInt(str);
-        } catch (final NumberFormatException e) {
-            return false;
+        /**
+         * @return A snapshot in which no image has been read and no thumbnail has been drawn, so that refreshing it
+         * draws the thumbnail from scratch.
+         */
+        Snapshot withoutImages() {
+            return new Snapshot(imageMask, 0, new String[0], new long[0], new DiaryIndex.ImageEntry[0],
+                    new AtomicReferenceArray<>(0), new AtomicReference<>(null), 0L, eventMask, events);
         }
-        return value >= 0 && value < 24;
-    }
 
-    static boolean isDayDirectory(final File file) {
-        return file.isDirectory() && DIRECTORY_NAME_TEST.test(file.getName());
+        /**
+         * @return The position of the hour in the arrays of the hours in the mask, or -1 if it is not in the mask.
+         */
+        private static int indexOf(final int mask, final int hour) {
+            return (mask & (1 << hour)) == 0 ? -1 : Integer.bitCount(mask & ((1 << hour) - 1));
+        }
+
+        @Nullable String getImageFileName(final int hour) {
+            final int index = indexOf(loadedImageMask, hour);
+            return index < 0 ? null : imageFileNames[index];
+        }
+
+        long getImageFileLastModified(final int hour) {
+            final int index = indexOf(loadedImageMask, hour);
+            return index < 0 ? 0L : imageFilesLastModified[index];
+        }
+
+        DiaryIndex.@Nullable ImageEntry getImageEntry(final int hour) {
+            final int index = indexOf(loadedImageMask, hour);
+            return index < 0 ? null : imageEntries[index];
+        }
+
+        byte @Nullable [] getImageData(final int hour) {
+            final int index = indexOf(loadedImageMask, hour);
+            return index < 0 ? null : imageData.get(index);
+        }
+
+        void cacheImageData(final int hour, final byte @Nullable [] data) {
+            final int index = indexOf(loadedImageMask, hour);
+            if (index >= 0) {
+                imageData.compareAndSet(index, null, data);
+            }
+        }
+
+        void releaseImageData() {
+            for (int i = 0; i < imageData.length(); i++) {
+                imageData.set(i, null);
+            }
+        }
+
+        @Nullable String getEvent(final int hour) {
+            final int index = indexOf(eventMask, hour);
+            return index < 0 ? null : events[index];
+        }
+
+        /**
+         * @return The image entries in an array with an element for every hour.
+         */
+        DiaryIndex.@Nullable ImageEntry[] expandImageEntries() {
+            final DiaryIndex.@Nullable ImageEntry[] result = new DiaryIndex.ImageEntry[24];
+            for (int hour = 0; hour < 24; hour++) {
+                result[hour] = getImageEntry(hour);
+            }
+            return result;
+        }
+
+        /**
+         * @return An estimate of the memory taken up by the snapshot and its image data, without the thumbnail.
+         */
+        long getSize() {
+            // The snapshot itself and the headers of its arrays, and then an ImageEntry and a String for each image
+            long size = 160L + imageFileNames.length * 96L;
+            for (int i = 0; i < imageFileNames.length; i++) {
+                final byte @Nullable [] data = imageData.get(i);
+                size += imageFileNames[i].length() + (data == null ? 0L : data.length);
+            }
+            for (final String event : events) {
+                size += 48L + event.length();
+            }
+            return size;
+        }
     }
 }
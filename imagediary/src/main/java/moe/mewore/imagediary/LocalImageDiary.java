@@ -1,89 +1,359 @@
 package moe.mewore.imagediary;
 
-import lombok.RequiredArgsConstructor;
 import lombok.Synchronized;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import java.awt.image.*;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-@RequiredArgsConstructor
-public class LocalImageDiary implements ImageDiary {
+/**
+ * A diary whose days are directories in one or more locations, e.g. on different disks. If the same day is in more
+ * than one location, only the one in the earliest location is used.
+ */
+public class LocalImageDiary implements ImageDiary, Closeable {
 
     private static final long REFRESH_COOLDOWN_MS = TimeUnit.SECONDS.toMillis(5);
 
+    private static final long SCANNER_KEEP_ALIVE_SECONDS = 30L;
+
     private final File[] locations;
 
-    private final Map<String, ImageDay> days = new ConcurrentHashMap<>();
+    private final DiaryIndex[] indexes;
+
+    /**
+     * The days by their dates packed with {@link DiaryDates#packDate(String)}. It is modified only while refreshing or
+     * applying a change in the locations, but it can be read at any time.
+     */
+    private final ConcurrentNavigableMap<Integer, LocalImageDay> days = new ConcurrentSkipListMap<>();
+
+    private final NavigableDays navigableDays = new NavigableDays(days);
+
+    private volatile List<ImageDay> daysReversed = Collections.emptyList();
+
+    private volatile List<Map.Entry<String, List<ImageDay>>> daysByMonthReversed = Collections.emptyList();
+
+    /**
+     * The months whose days or images may have changed since their images were last counted in {@link #monthIndex}.
+     */
+    private final Set<String> changedMonths = ConcurrentHashMap.newKeySet();
+
+    private final Object monthIndexLock = new Object();
 
-    private List<Map.Entry<String, List<ImageDay>>> daysByMonthReversed = Collections.emptyList();
+    private MonthIndex monthIndex = MonthIndex.empty();
 
     private final ReadFileFunction<BufferedImage> readImageFunction;
 
     private final ReadFileFunction<String> readTextFileFunction;
 
+    private final LocalImageDiaryOptions options;
+
+    private final @Nullable DiaryWatcher watcher;
+
+    private final SingleFlight refreshFlight = new SingleFlight();
+
+    /**
+     * Scans all locations but the first one, each on its own thread, while the first one is scanned by the refreshing
+     * thread. It is null if there is only one location.
+     */
+    private final @Nullable ExecutorService scanExecutor;
+
     private long lastRefreshedAt = 0L;
 
-    @Synchronized
+    private volatile boolean refreshedOnce = false;
+
+    /**
+     * Whether the locations have to be listed again. Used only when the diary is being watched.
+     */
+    private volatile boolean locationsChanged = true;
+
+    public LocalImageDiary(final File[] locations, final ReadFileFunction<BufferedImage> readImageFunction,
+                           final ReadFileFunction<String> readTextFileFunction) {
+        this(locations, readImageFunction, readTextFileFunction, LocalImageDiaryOptions.builder().build());
+    }
+
+    public LocalImageDiary(final File[] locations, final ReadFileFunction<BufferedImage> readImageFunction,
+                           final ReadFileFunction<String> readTextFileFunction,
+                           final LocalImageDiaryOptions options) {
+        this.locations = locations;
+        this.readImageFunction = readImageFunction;
+        this.readTextFileFunction = readTextFileFunction;
+        this.options = options;
+        indexes = Arrays.stream(locations).map(DiaryIndex::load).toArray(DiaryIndex[]::new);
+        if (locations.length > 1) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(locations.length - 1, locations.length - 1,
+                    SCANNER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "diary-scanner-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            // The locations are scanned rarely so the threads should not stay around in between
+            executor.allowCoreThreadTimeOut(true);
+            scanExecutor = executor;
+        } else {
+            scanExecutor = null;
+        }
+        if (options.getRefreshMode() == RefreshMode.WATCHING) {
+            try {
+                watcher = new DiaryWatcher();
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Failed to create a watch service for the image diary", e);
+            }
+            for (int i = 0; i < locations.length; i++) {
+                final int locationIndex = i;
+                watcher.watch(locations[i].toPath(),
+                        (kind, child) -> onLocationChanged(locationIndex, kind, child));
+            }
+        } else {
+            watcher = null;
+        }
+    }
+
     @Override
     public void refresh() {
-        final long now = System.currentTimeMillis();
-        if (now < lastRefreshedAt + REFRESH_COOLDOWN_MS) {
+        refreshFlight.run(this::refreshLocations, true);
+    }
+
+    /**
+     * Refreshes the diary if it is due. If someone else is refreshing it already, their refresh is waited for only if
+     * the diary has never been refreshed or the options say so. A manually refreshed diary is refreshed here only if it
+     * has never been refreshed.
+     */
+    private void refreshForReading() {
+        if (refreshedOnce && options.getRefreshMode() == RefreshMode.MANUAL) {
             return;
         }
-        lastRefreshedAt = System.currentTimeMillis();
-        final List<String> currentDayNames = new ArrayList<>();
-        final AtomicBoolean changed = new AtomicBoolean(false);
-        for (final File location : locations) {
-            final File @Nullable [] foundDirectories = location.listFiles(LocalImageDay::isDayDirectory);
-            if (foundDirectories != null) {
-                System.out.println("Found these directories in location " + location + ": " +
-                                   Arrays.stream(foundDirectories)
-                                           .map(File::getName)
-                                           .collect(Collectors.joining(", ")));
-                for (final File directory : foundDirectories) {
-                    currentDayNames.add(directory.getName());
-                    days.computeIfAbsent(directory.getName(), key -> {
-                        changed.set(true);
-                        return new LocalImageDay(directory, readImageFunction, readTextFileFunction);
-                    });
+        refreshFlight.run(this::refreshLocations,
+                !refreshedOnce || options.getConcurrentRefreshMode() == ConcurrentRefreshMode.WAIT);
+    }
+
+    @Synchronized
+    private void refreshLocations() {
+        if (watcher != null) {
+            if (!locationsChanged) {
+                return;
+            }
+            locationsChanged = false;
+        } else if (options.getRefreshMode() == RefreshMode.POLLING) {
+            final long now = System.currentTimeMillis();
+            if (now < lastRefreshedAt + REFRESH_COOLDOWN_MS) {
+                return;
+            }
+            lastRefreshedAt = System.currentTimeMillis();
+        }
+        final long startedAt = options.getMetrics().startTimer();
+        final List<@Nullable List<File>> scannedLocations = scanLocations();
+        // The locations are merged in their order so that the same day in a later location is always ignored, no
+        // matter which of the locations has been scanned first
+        final Set<Integer> currentDates = new HashSet<>();
+        final Map<Integer, File> ignoredDirectories = new TreeMap<>();
+        int addedCount = 0;
+        for (int i = 0; i < locations.length; i++) {
+            final @Nullable List<File> foundDirectories = scannedLocations.get(i);
+            if (foundDirectories == null) {
+                continue;
+            }
+            final Set<String> foundNames = new HashSet<>();
+            for (final File directory : foundDirectories) {
+                foundNames.add(directory.getName());
+                final int date = DiaryDates.packDate(directory.getName());
+                if (!currentDates.add(date)) {
+                    ignoredDirectories.put(date, directory);
+                    continue;
+                }
+                final @Nullable LocalImageDay existingDay = days.get(date);
+                if (existingDay == null || !existingDay.getDirectory().equals(directory)) {
+                    // The day may have been in a later location until it appeared in this one
+                    addDay(date, createDay(directory, indexes[i]));
+                    if (existingDay != null) {
+                        releaseDay(existingDay);
+                    }
+                    addedCount++;
                 }
-            } else {
-                System.err.println("Found no directories in location " + location);
             }
+            indexes[i].retainDays(foundNames);
         }
-        if (days.keySet().retainAll(currentDayNames)) {
-            System.out.println("Some image diary days have been removed. Current image dairy days: " + String.join(", ",
-                    days.keySet()));
-            changed.set(true);
+        int removedCount = 0;
+        for (final Map.Entry<Integer, LocalImageDay> entry : days.entrySet()) {
+            if (!currentDates.contains(entry.getKey())) {
+                forgetDay(entry.getKey(), entry.getValue());
+                removedCount++;
+            }
         }
+        options.getMetrics().stopTimer(DiaryOperation.REFRESH_DIARY, startedAt);
+        options.getMetrics().count(DiaryCounter.DIARY_REFRESHES, 1L);
 
-        if (changed.get()) {
-            final Map<String, List<ImageDay>> groupedByMonth = new HashMap<>();
-            for (final ImageDay day : days.values()) {
-                groupedByMonth.computeIfAbsent(day.getMonth(), key -> new ArrayList<>()).add(day);
+        if (addedCount > 0 || removedCount > 0) {
+            updateDayLists();
+            System.out.printf("Scanned %d image diary locations: %d days (%d added, %d removed)%n", locations.length,
+                    days.size(), addedCount, removedCount);
+            for (final File ignoredDirectory : ignoredDirectories.values()) {
+                System.err.println("Ignoring " + ignoredDirectory + " because the same day is in an earlier location");
             }
-            for (final String key : groupedByMonth.keySet().toArray(new String[0])) {
-                groupedByMonth.computeIfPresent(key, (k, value) -> value.stream()
-                        .sorted((first, second) -> second.compareDate(first))
-                        .collect(Collectors.toUnmodifiableList()));
-            }
-            daysByMonthReversed = groupedByMonth.entrySet()
-                    .stream()
-                    .sorted((o1, o2) -> o2.getKey().compareTo(o1.getKey()))
-                    .collect(Collectors.toUnmodifiableList());
+        }
+        refreshedOnce = true;
+    }
+
+    /**
+     * Lists the day directories of all locations in parallel so that it takes as long as the slowest location rather
+     * than all of them together.
+     *
+     * @return The day directories of each location sorted by name, or null for the locations which could not be
+     * listed.
+     */
+    private List<@Nullable List<File>> scanLocations() {
+        final List<@Nullable List<File>> result = new ArrayList<>(locations.length);
+        if (locations.length == 0) {
+            return result;
+        }
+        final List<CompletableFuture<@Nullable List<File>>> otherScans = new ArrayList<>(locations.length - 1);
+        for (int i = 1; i < locations.length; i++) {
+            final File location = locations[i];
+            otherScans.add(CompletableFuture.supplyAsync(() -> scanLocation(location),
+                    Objects.requireNonNull(scanExecutor)));
+        }
+        result.add(scanLocation(locations[0]));
+        for (final CompletableFuture<@Nullable List<File>> scan : otherScans) {
+            result.add(scan.join());
+        }
+        return result;
+    }
+
+    /**
+     * Lists the day directories of the location with {@link Files#walkFileTree}, which provides the attributes of
+     * each entry along with it. On some platforms, they come from the directory listing itself instead of a separate
+     * call for each entry.
+     */
+    private @Nullable List<File> scanLocation(final File location) {
+        final long startedAt = options.getMetrics().startTimer();
+        final Path root = location.toPath();
+        final List<File> dayDirectories = new ArrayList<>();
+        try {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                    if (attributes.isDirectory() && LocalImageDay.isDayDirectoryName(file.getFileName().toString())) {
+                        dayDirectories.add(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+                    if (file.equals(root)) {
+                        throw e;
+                    }
+                    // The entry has been deleted while listing or is a broken link
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            System.err.println("Failed to list the directories in location " + location + ": " + e);
+            return null;
+        } finally {
+            options.getMetrics().stopTimer(DiaryOperation.LIST_FILES, startedAt);
+        }
+        dayDirectories.sort(Comparator.comparing(File::getName));
+        return dayDirectories;
+    }
+
+    private LocalImageDay createDay(final File directory, final DiaryIndex index) {
+        final String month = directory.getName().substring(0, directory.getName().lastIndexOf('-'));
+        final LocalImageDay day = new LocalImageDay(directory, readImageFunction, readTextFileFunction, index, options,
+                () -> changedMonths.add(month));
+        if (watcher != null) {
+            watcher.watch(directory.toPath(), day::onFileChanged);
+        }
+        return day;
+    }
+
+    private void addDay(final int date, final LocalImageDay day) {
+        days.put(date, day);
+        changedMonths.add(day.getMonth());
+    }
+
+    private void forgetDay(final int date, final LocalImageDay day) {
+        days.remove(date);
+        releaseDay(day);
+    }
+
+    private void releaseDay(final LocalImageDay day) {
+        changedMonths.add(day.getMonth());
+        options.getCache().remove(day);
+        if (watcher != null) {
+            watcher.unwatch(day.getDirectory().toPath());
+        }
+    }
+
+    private void updateDayLists() {
+        daysReversed = Collections.unmodifiableList(navigableDays.getDaysReversed());
+        daysByMonthReversed = navigableDays.groupByMonthReversed();
+    }
+
+    private void onLocationChanged(final int locationIndex, final WatchEvent.Kind<?> kind,
+                                   final @Nullable Path child) {
+        if (child == null) {
+            locationsChanged = true;
+            days.values().forEach(day -> day.onFileChanged(kind, null));
+            return;
+        }
+        final File directory = locations[locationIndex].toPath().resolve(child).toFile();
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && LocalImageDay.isDayDirectory(directory)) {
+            addDay(directory, indexes[locationIndex]);
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            removeDay(directory);
+        }
+    }
+
+    @Synchronized
+    private void addDay(final File directory, final DiaryIndex index) {
+        final int date = DiaryDates.packDate(directory.getName());
+        if (!days.containsKey(date)) {
+            addDay(date, createDay(directory, index));
+            updateDayLists();
+        } else {
+            // Which of the locations the day should be taken from is decided by listing them again
+            locationsChanged = true;
+        }
+    }
+
+    @Synchronized
+    private void removeDay(final File directory) {
+        final int date = DiaryDates.packDate(directory.getName());
+        final @Nullable LocalImageDay day = date == DiaryDates.INVALID ? null : days.get(date);
+        if (day != null && day.getDirectory().equals(directory)) {
+            forgetDay(date, day);
+            updateDayLists();
+            // The same day may exist in another location
+            locationsChanged = true;
         }
     }
 
     @Override
     public List<ImageDay> getDaysReversed() {
-        refresh();
-        return days.values().stream().sorted((first, second) -> second.compareDate(first)).collect(Collectors.toList());
+        refreshForReading();
+        return daysReversed;
     }
 
     @Override
@@ -93,12 +363,80 @@ public class LocalImageDiary implements ImageDiary {
 
     @Override
     public @Nullable ImageDay getDay(final String name) {
-        refresh();
-        return days.get(name);
+        refreshForReading();
+        return navigableDays.getDay(name);
+    }
+
+    @Override
+    public List<ImageDay> getDaysInMonthReversed(final String month) {
+        refreshForReading();
+        return navigableDays.getDaysInMonthReversed(month);
+    }
+
+    @Override
+    public List<ImageDay> getDaysBetweenReversed(final String fromDate, final String toDate) {
+        refreshForReading();
+        return navigableDays.getDaysBetweenReversed(fromDate, toDate);
+    }
+
+    @Override
+    public @Nullable ImageDay getNextDay(final String date) {
+        refreshForReading();
+        return navigableDays.getNextDay(date);
+    }
+
+    @Override
+    public @Nullable ImageDay getPreviousDay(final String date) {
+        refreshForReading();
+        return navigableDays.getPreviousDay(date);
+    }
+
+    @Override
+    public @Nullable String getNextMonth(final String month) {
+        refreshForReading();
+        return navigableDays.getNextMonth(month);
+    }
+
+    @Override
+    public @Nullable String getPreviousMonth(final String month) {
+        refreshForReading();
+        return navigableDays.getPreviousMonth(month);
+    }
+
+    @Override
+    public MonthIndex getMonthIndex() {
+        refreshForReading();
+        synchronized (monthIndexLock) {
+            for (final Iterator<String> iterator = changedMonths.iterator(); iterator.hasNext(); ) {
+                final String month = iterator.next();
+                iterator.remove();
+                final List<ImageDay> monthDays = navigableDays.getDaysInMonthReversed(month);
+                monthIndex = monthDays.isEmpty() ? monthIndex.withoutMonth(month) :
+                        monthIndex.withImageCount(month, monthDays.stream().mapToInt(ImageDay::getImageCount).sum());
+            }
+            return monthIndex;
+        }
+    }
+
+    @Override
+    public void saveIndex() {
+        for (final DiaryIndex index : indexes) {
+            index.save();
+        }
     }
 
     @Override
     public long getSize() {
         return days.values().stream().mapToLong(ImageDay::getSize).sum();
     }
+
+    @Override
+    public void close() throws IOException {
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package moe.mewore.imagediary;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+public class LocalImageDiaryOptions {
+
+    @Builder.Default
+    ImageDataMode imageDataMode = ImageDataMode.REENCODED;
+
+    @Builder.Default
+    ImageDayCache cache = ImageDayCache.unbounded();
+
+    @Builder.Default
+    RefreshMode refreshMode = RefreshMode.POLLING;
+
+    @Builder.Default
+    ThumbnailEncoder thumbnailEncoder = ThumbnailEncoder.png();
+
+    @Builder.Default
+    ConcurrentRefreshMode concurrentRefreshMode = ConcurrentRefreshMode.SERVE_STALE;
+
+    @Builder.Default
+    DiaryMetrics metrics = DiaryMetrics.NONE;
+}
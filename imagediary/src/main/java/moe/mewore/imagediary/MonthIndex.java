@@ -0,0 +1,126 @@
+package moe.mewore.imagediary;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The number of images in every month of a diary, along with how many images there are in all months newer than each
+ * of them, so that the images before or after a month can be counted without going through the days. It is
+ * immutable; a change in a month produces a new index.
+ */
+public final class MonthIndex {
+
+    private static final MonthIndex EMPTY = new MonthIndex(new String[0], new int[0]);
+
+    private static final Comparator<String> NEWEST_FIRST = Comparator.reverseOrder();
+
+    /**
+     * The months in the "YYYY-MM" format, from the newest to the oldest.
+     */
+    private final String[] months;
+
+    private final int[] imageCounts;
+
+    /**
+     * The number of images in the months before each index of {@link #months}, i.e. in the newer months, and the
+     * total number of images at the end.
+     */
+    private final int[] newerImageCounts;
+
+    private MonthIndex(final String[] months, final int[] imageCounts) {
+        this.months = months;
+        this.imageCounts = imageCounts;
+        newerImageCounts = new int[months.length + 1];
+        for (int i = 0; i < months.length; i++) {
+            newerImageCounts[i + 1] = newerImageCounts[i] + imageCounts[i];
+        }
+    }
+
+    public static MonthIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return An index with the image count of the month set to the given one, adding the month if it is not in it.
+     */
+    MonthIndex withImageCount(final String month, final int imageCount) {
+        final int index = indexOf(month);
+        if (index >= 0) {
+            if (imageCounts[index] == imageCount) {
+                return this;
+            }
+            final int[] newImageCounts = imageCounts.clone();
+            newImageCounts[index] = imageCount;
+            return new MonthIndex(months, newImageCounts);
+        }
+        final int insertionIndex = -index - 1;
+        final String[] newMonths = new String[months.length + 1];
+        final int[] newImageCounts = new int[months.length + 1];
+        System.arraycopy(months, 0, newMonths, 0, insertionIndex);
+        System.arraycopy(imageCounts, 0, newImageCounts, 0, insertionIndex);
+        newMonths[insertionIndex] = month;
+        newImageCounts[insertionIndex] = imageCount;
+        System.arraycopy(months, insertionIndex, newMonths, insertionIndex + 1, months.length - insertionIndex);
+        System.arraycopy(imageCounts, insertionIndex, newImageCounts, insertionIndex + 1,
+                months.length - insertionIndex);
+        return new MonthIndex(newMonths, newImageCounts);
+    }
+
+    /**
+     * @return An index without the month.
+     */
+    MonthIndex withoutMonth(final String month) {
+        final int index = indexOf(month);
+        if (index < 0) {
+            return this;
+        }
+        final String[] newMonths = new String[months.length - 1];
+        final int[] newImageCounts = new int[months.length - 1];
+        System.arraycopy(months, 0, newMonths, 0, index);
+        System.arraycopy(imageCounts, 0, newImageCounts, 0, index);
+        System.arraycopy(months, index + 1, newMonths, index, months.length - index - 1);
+        System.arraycopy(imageCounts, index + 1, newImageCounts, index, months.length - index - 1);
+        return new MonthIndex(newMonths, newImageCounts);
+    }
+
+    /**
+     * @return The index of the month from the newest one, or (-(insertion point) - 1) if it is not in the index.
+     */
+    private int indexOf(final String month) {
+        return Arrays.binarySearch(months, month, NEWEST_FIRST);
+    }
+
+    /**
+     * @return The months in the index, from the newest to the oldest.
+     */
+    public List<String> getMonths() {
+        return Collections.unmodifiableList(Arrays.asList(months));
+    }
+
+    public int getImageCount(final String month) {
+        final int index = indexOf(month);
+        return index < 0 ? 0 : imageCounts[index];
+    }
+
+    /**
+     * @return The number of images in the months after the given one, which does not have to be in the index.
+     */
+    public int getImageCountAfter(final String month) {
+        final int index = indexOf(month);
+        return newerImageCounts[index < 0 ? -index - 1 : index];
+    }
+
+    /**
+     * @return The number of images in the months before the given one, which does not have to be in the index.
+     */
+    public int getImageCountBefore(final String month) {
+        final int index = indexOf(month);
+        return getTotalImageCount() - newerImageCounts[index < 0 ? -index - 1 : index + 1];
+    }
+
+    public int getTotalImageCount() {
+        return newerImageCounts[months.length];
+    }
+}
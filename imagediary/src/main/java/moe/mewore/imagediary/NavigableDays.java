@@ -0,0 +1,96 @@
+package moe.mewore.imagediary;
+
+import lombok.RequiredArgsConstructor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Answers the range queries of an image diary from its days sorted by their packed dates, each in logarithmic time
+ * plus the number of the returned days.
+ */
+@RequiredArgsConstructor
+final class NavigableDays {
+
+    private final NavigableMap<Integer, ? extends ImageDay> days;
+
+    List<ImageDay> getDaysReversed() {
+        return new ArrayList<>(days.descendingMap().values());
+    }
+
+    @Nullable ImageDay getDay(final String date) {
+        final int packedDate = DiaryDates.packDate(date);
+        return packedDate == DiaryDates.INVALID ? null : days.get(packedDate);
+    }
+
+    List<ImageDay> getDaysInMonthReversed(final String month) {
+        final int packedMonth = DiaryDates.packMonth(month);
+        if (packedMonth == DiaryDates.INVALID) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(days.subMap(DiaryDates.getFirstDate(packedMonth), true,
+                DiaryDates.getLastDate(packedMonth), true).descendingMap().values());
+    }
+
+    List<ImageDay> getDaysBetweenReversed(final String fromDate, final String toDate) {
+        final int from = DiaryDates.packDate(fromDate);
+        final int to = DiaryDates.packDate(toDate);
+        if (from == DiaryDates.INVALID || to == DiaryDates.INVALID || from > to) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(days.subMap(from, true, to, true).descendingMap().values());
+    }
+
+    @Nullable ImageDay getNextDay(final String date) {
+        final int packedDate = DiaryDates.packDate(date);
+        return packedDate == DiaryDates.INVALID ? null : getValue(days.higherEntry(packedDate));
+    }
+
+    @Nullable ImageDay getPreviousDay(final String date) {
+        final int packedDate = DiaryDates.packDate(date);
+        return packedDate == DiaryDates.INVALID ? null : getValue(days.lowerEntry(packedDate));
+    }
+
+    @Nullable String getNextMonth(final String month) {
+        final int packedMonth = DiaryDates.packMonth(month);
+        return packedMonth == DiaryDates.INVALID ? null :
+                getMonth(days.higherEntry(DiaryDates.getLastDate(packedMonth)));
+    }
+
+    @Nullable String getPreviousMonth(final String month) {
+        final int packedMonth = DiaryDates.packMonth(month);
+        return packedMonth == DiaryDates.INVALID ? null :
+                getMonth(days.lowerEntry(DiaryDates.getFirstDate(packedMonth)));
+    }
+
+    /**
+     * @return The days grouped by month, with both the months and the days in them from the newest to the oldest.
+     */
+    List<Map.Entry<String, List<ImageDay>>> groupByMonthReversed() {
+        final List<Map.Entry<String, List<ImageDay>>> result = new ArrayList<>();
+        int currentMonth = DiaryDates.INVALID;
+        List<ImageDay> currentDays = new ArrayList<>();
+        for (final Map.Entry<Integer, ? extends ImageDay> entry : days.descendingMap().entrySet()) {
+            final int month = DiaryDates.getMonth(entry.getKey());
+            if (month != currentMonth) {
+                currentMonth = month;
+                currentDays = new ArrayList<>();
+                result.add(Map.entry(entry.getValue().getMonth(), Collections.unmodifiableList(currentDays)));
+            }
+            currentDays.add(entry.getValue());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static @Nullable ImageDay getValue(final Map.@Nullable Entry<Integer, ? extends ImageDay> entry) {
+        return entry == null ? null : entry.getValue();
+    }
+
+    private static @Nullable String getMonth(final Map.@Nullable Entry<Integer, ? extends ImageDay> entry) {
+        return entry == null ? null : DiaryDates.unpackMonth(DiaryDates.getMonth(entry.getKey()));
+    }
+}
@@ -0,0 +1,69 @@
+package moe.mewore.imagediary;
+
+import lombok.RequiredArgsConstructor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+@RequiredArgsConstructor
+class PngThumbnailEncoder implements ThumbnailEncoder {
+
+    /**
+     * The deflate level, or -1 for the default one of the writer.
+     */
+    private final int deflateLevel;
+
+    @Override
+    public String getFileExtension() {
+        return "png";
+    }
+
+    @Override
+    public String getSignature() {
+        return deflateLevel < 0 ? "png" : "png:" + deflateLevel;
+    }
+
+    @Override
+    public byte @Nullable [] encode(final BufferedImage thumbnail) throws IOException {
+        return write(thumbnail, "png", deflateLevel < 0
+                ? null
+                // The PNG writer uses a deflate level of (int) (9 * (1 - quality))
+                : Math.max(0f, 1f - (deflateLevel + .5f) / 9f));
+    }
+
+    /**
+     * Writes the image with the first writer of the format.
+     *
+     * @param compressionQuality The compression quality to set explicitly, or null to use the default one.
+     */
+    static byte @Nullable [] write(final RenderedImage image, final String formatName,
+                                   final @Nullable Float compressionQuality) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            return null;
+        }
+        final ImageWriter writer = writers.next();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            final @Nullable ImageWriteParam param = compressionQuality == null ? null : writer.getDefaultWriteParam();
+            if (param != null) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(compressionQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
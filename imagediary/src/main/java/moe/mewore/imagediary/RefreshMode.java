@@ -0,0 +1,26 @@
+package moe.mewore.imagediary;
+
+/**
+ * Determines how an image diary finds out about changes in its directories.
+ */
+public enum RefreshMode {
+
+    /**
+     * The directories are listed again when they are accessed after a cooldown has passed since they were last
+     * listed.
+     */
+    POLLING,
+
+    /**
+     * The directories are watched and the changes in them are applied as soon as they are reported. Accessing the
+     * diary does not list any directories unless something in them has changed.
+     */
+    WATCHING,
+
+    /**
+     * The directories are listed only when the diary or a day is refreshed explicitly, for example by an
+     * {@link AsyncImageDiary} in the background. Accessing the diary does not list any directories after the first
+     * refresh.
+     */
+    MANUAL,
+}
@@ -0,0 +1,38 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes sure that an action is never run more than once at the same time. Whoever asks for it while it is already
+ * running either waits for the same run to finish or does not wait at all, instead of running it again.
+ */
+final class SingleFlight {
+
+    private final AtomicReference<@Nullable CompletableFuture<Void>> inFlight = new AtomicReference<>(null);
+
+    /**
+     * Runs the action in the current thread unless it is already running in another one.
+     *
+     * @param wait Whether to wait for the run in progress, if there is one.
+     */
+    void run(final Runnable action, final boolean wait) {
+        final CompletableFuture<Void> run = new CompletableFuture<>();
+        final @Nullable CompletableFuture<Void> otherRun = inFlight.compareAndExchange(null, run);
+        if (otherRun != null) {
+            if (wait) {
+                // It always completes normally; a failure is reported only to the thread which has run the action
+                otherRun.join();
+            }
+            return;
+        }
+        try {
+            action.run();
+        } finally {
+            inFlight.set(null);
+            run.complete(null);
+        }
+    }
+}
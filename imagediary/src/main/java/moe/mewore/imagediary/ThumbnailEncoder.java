@@ -0,0 +1,80 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Encodes the thumbnails of the image days into the bytes of their files.
+ */
+public interface ThumbnailEncoder {
+
+    String getFileExtension();
+
+    /**
+     * @return A name of the format and all settings which affect the encoded bytes. A thumbnail file which was written
+     * with an encoder of another signature has to be written again.
+     */
+    String getSignature();
+
+    /**
+     * @param thumbnail An image of type {@link BufferedImage#TYPE_INT_ARGB}.
+     * @return The encoded thumbnail, or null if there is no writer for the format.
+     */
+    byte @Nullable [] encode(BufferedImage thumbnail) throws IOException;
+
+    /**
+     * @return A PNG encoder with the default settings of the PNG writer.
+     */
+    static ThumbnailEncoder png() {
+        return new PngThumbnailEncoder(-1);
+    }
+
+    /**
+     * @param deflateLevel The deflate compression level, from 0 (none) to 9 (the best).
+     */
+    static ThumbnailEncoder png(final int deflateLevel) {
+        if (deflateLevel < 0 || deflateLevel > 9) {
+            throw new IllegalArgumentException("The deflate level should be between 0 and 9 but it is " + deflateLevel);
+        }
+        return new PngThumbnailEncoder(deflateLevel);
+    }
+
+    /**
+     * @return An encoder of PNG images with a palette of at most 256 colors, which the colors of the thumbnail are
+     * reduced to.
+     */
+    static ThumbnailEncoder indexedPng() {
+        return new IndexedPngThumbnailEncoder();
+    }
+
+    /**
+     * @param quality The JPEG quality, from 0 to 1. The transparent parts of the thumbnail become black.
+     */
+    static ThumbnailEncoder jpeg(final float quality) {
+        if (quality < 0f || quality > 1f) {
+            throw new IllegalArgumentException("The JPEG quality should be between 0 and 1 but it is " + quality);
+        }
+        return new JpegThumbnailEncoder(quality);
+    }
+
+    /**
+     * @param name One of "png", "png:[deflate level]", "indexed-png" or "jpeg:[quality]".
+     */
+    static ThumbnailEncoder fromName(final String name) {
+        final int separatorIndex = name.indexOf(':');
+        final String format = separatorIndex < 0 ? name : name.substring(0, separatorIndex);
+        final @Nullable String setting = separatorIndex < 0 ? null : name.substring(separatorIndex + 1);
+        switch (format) {
+            case "png":
+                return setting == null ? png() : png(Integer.parseInt(setting));
+            case "indexed-png":
+                return indexedPng();
+            case "jpeg":
+                return jpeg(setting == null ? 0.85f : Float.parseFloat(setting));
+            default:
+                throw new IllegalArgumentException("Unknown thumbnail format: " + name);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package moe.mewore.imagediary;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thumbnail files of many days at once in a pool of its own, so that decoding, scaling and encoding them
+ * scales with the number of cores without competing with anything else for the common pool.
+ */
+public class ThumbnailPipeline implements Closeable {
+
+    @FunctionalInterface
+    public interface ProgressListener {
+
+        /**
+         * Called from the worker threads every time a day is done, whether its thumbnail could be created or not.
+         */
+        void onProgress(int doneCount, int totalCount);
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * The days which have been submitted but not taken by a worker yet can be at most as many as the permits.
+     */
+    private final Semaphore pendingPermits;
+
+    /**
+     * @param threadCount     The number of days whose thumbnails are created at the same time.
+     * @param maxPendingCount The number of days which can wait for a worker. Submitting more blocks until a worker
+     *                        takes one of them.
+     */
+    public ThumbnailPipeline(final int threadCount, final int maxPendingCount) {
+        if (threadCount < 1 || maxPendingCount < 1) {
+            throw new IllegalArgumentException("The thread count (" + threadCount + ") and the maximum pending " +
+                                               "count (" + maxPendingCount + ") of a thumbnail pipeline should be " +
+                                               "positive");
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "thumbnail-worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingPermits = new Semaphore(maxPendingCount);
+    }
+
+    public static ThumbnailPipeline withAvailableProcessors() {
+        final int processorCount = Runtime.getRuntime().availableProcessors();
+        return new ThumbnailPipeline(processorCount, processorCount * 2);
+    }
+
+    /**
+     * Creates the thumbnail files of the days and waits until all of them are done.
+     *
+     * @return The number of days whose thumbnail could not be created.
+     */
+    public int createThumbnailFiles(final List<? extends ImageDay> days, final ProgressListener listener)
+            throws InterruptedException {
+        final int totalCount = days.size();
+        final AtomicInteger doneCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final Semaphore finished = new Semaphore(0);
+        for (final ImageDay day : days) {
+            pendingPermits.acquire();
+            executor.execute(() -> {
+                pendingPermits.release();
+                try {
+                    if (!day.createThumbnailFile()) {
+                        failedCount.incrementAndGet();
+                    }
+                } catch (final RuntimeException e) {
+                    System.err.println("Failed to create the thumbnail of day " + day.getDate());
+                    e.printStackTrace();
+                    failedCount.incrementAndGet();
+                } finally {
+                    listener.onProgress(doneCount.incrementAndGet(), totalCount);
+                    finished.release();
+                }
+            });
+        }
+        finished.acquire(totalCount);
+        return failedCount.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
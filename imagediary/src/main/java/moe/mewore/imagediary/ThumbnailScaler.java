@@ -0,0 +1,348 @@
+package moe.mewore.imagediary;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Scales images down into the cells of a thumbnail in a single pass by averaging the area of the image which each
+ * pixel of the cell covers. The image is scaled so that it covers the whole cell and the parts of it which do not fit
+ * are cut off evenly from both sides. Transparent pixels are drawn over black and the cells are opaque.
+ * <p>
+ * Each thread has its own scratch buffers, which are reused for every image it scales.
+ */
+public final class ThumbnailScaler {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The weights are fixed-point numbers with this many fractional bits, so the weights of a pixel of the cell add up
+     * to {@code 1 << WEIGHT_BITS}.
+     */
+    private static final int WEIGHT_BITS = 12;
+
+    /**
+     * What a color channel sums up to after being multiplied by its alpha and by the horizontal and vertical weights.
+     */
+    private static final long CHANNEL_SCALE = 255L << (WEIGHT_BITS * 2);
+
+    private ThumbnailScaler() {
+    }
+
+    /**
+     * Scales the whole image down to the given width, keeping its aspect ratio.
+     *
+     * @return An image of type {@link BufferedImage#TYPE_INT_ARGB}.
+     */
+    public static BufferedImage scaleToWidth(final BufferedImage image, final int width) {
+        if (width < 1 || width > image.getWidth()) {
+            throw new IllegalArgumentException("An image which is " + image.getWidth() + " pixels wide cannot be " +
+                                               "scaled down to " + width + " pixels");
+        }
+        final int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+        final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        scaleInto(image, result, 0, width, height);
+        return result;
+    }
+
+    /**
+     * Scales the image into the cell of the target image which starts at (cellX, 0).
+     *
+     * @param target An image of type {@link BufferedImage#TYPE_INT_ARGB}.
+     */
+    static void scaleInto(final BufferedImage image, final BufferedImage target, final int cellX,
+                          final int cellWidth, final int cellHeight) {
+        final Scratch scratch = SCRATCH.get();
+        final double scale = Math.max((double) cellWidth / image.getWidth(), (double) cellHeight / image.getHeight());
+        final double sourceWidth = cellWidth / scale;
+        final double sourceHeight = cellHeight / scale;
+        final Axis columns = scratch.columns.compute(cellWidth, (image.getWidth() - sourceWidth) / 2, sourceWidth,
+                image.getWidth());
+        final Axis rows = scratch.rows.compute(cellHeight, (image.getHeight() - sourceHeight) / 2, sourceHeight,
+                image.getHeight());
+
+        final int rowStart = columns.starts[0];
+        final int rowWidth = columns.starts[cellWidth - 1] + columns.lengths[cellWidth - 1] - rowStart;
+        final @Nullable InterleavedBytes bytes = InterleavedBytes.of(image);
+        final int[] row = scratch.row(bytes == null ? rowWidth : 0);
+        final int[] reducedRow = scratch.reducedRow(cellWidth);
+        final long[] sums = scratch.sums(cellWidth);
+        final int[] cell = scratch.cell(cellWidth * cellHeight);
+        int reducedRowY = -1;
+        for (int y = 0; y < cellHeight; y++) {
+            Arrays.fill(sums, 0, cellWidth * 3, 0L);
+            final int start = rows.starts[y];
+            final int weightOffset = rows.weightOffsets[y];
+            for (int i = 0; i < rows.lengths[y]; i++) {
+                if (start + i != reducedRowY) {
+                    reducedRowY = start + i;
+                    if (bytes != null) {
+                        reduceRow(bytes, reducedRowY, columns, cellWidth, reducedRow);
+                    } else {
+                        readRow(image, rowStart, reducedRowY, rowWidth, row);
+                        reduceRow(row, rowStart, columns, cellWidth, reducedRow);
+                    }
+                }
+                final long weight = rows.weights[weightOffset + i];
+                for (int j = 0; j < cellWidth * 3; j++) {
+                    sums[j] += reducedRow[j] * weight;
+                }
+            }
+            for (int x = 0; x < cellWidth; x++) {
+                cell[y * cellWidth + x] = 0xff000000 | toChannel(sums[x * 3]) << 16 | toChannel(sums[x * 3 + 1]) << 8 |
+                        toChannel(sums[x * 3 + 2]);
+            }
+        }
+        target.getRaster().setDataElements(cellX, 0, cellWidth, cellHeight, cell);
+    }
+
+    /**
+     * Averages the pixels of a row of the image into the columns of the cell, as red, green and blue triplets.
+     */
+    private static void reduceRow(final int[] row, final int rowStart, final Axis columns, final int cellWidth,
+                                  final int[] reducedRow) {
+        for (int x = 0; x < cellWidth; x++) {
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            final int start = columns.starts[x] - rowStart;
+            final int weightOffset = columns.weightOffsets[x];
+            for (int i = 0; i < columns.lengths[x]; i++) {
+                final int pixel = row[start + i];
+                // Premultiplying the color with its alpha draws it over black
+                final int weight = columns.weights[weightOffset + i] * (pixel >>> 24);
+                red += ((pixel >> 16) & 0xff) * weight;
+                green += ((pixel >> 8) & 0xff) * weight;
+                blue += (pixel & 0xff) * weight;
+            }
+            reducedRow[x * 3] = red;
+            reducedRow[x * 3 + 1] = green;
+            reducedRow[x * 3 + 2] = blue;
+        }
+    }
+
+    /**
+     * Averages the pixels of a row of an image which is stored as interleaved bytes, reading them directly from its
+     * data buffer.
+     */
+    private static void reduceRow(final InterleavedBytes bytes, final int y, final Axis columns, final int cellWidth,
+                                  final int[] reducedRow) {
+        final byte[] data = bytes.data;
+        final int pixelStride = bytes.pixelStride;
+        final int redOffset = bytes.redOffset;
+        final int greenOffset = bytes.greenOffset;
+        final int blueOffset = bytes.blueOffset;
+        final int alphaOffset = bytes.alphaOffset;
+        final int rowOffset = bytes.getOffset(0, y);
+        for (int x = 0; x < cellWidth; x++) {
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            int offset = rowOffset + columns.starts[x] * pixelStride;
+            final int weightOffset = columns.weightOffsets[x];
+            final int weightEnd = weightOffset + columns.lengths[x];
+            for (int i = weightOffset; i < weightEnd; i++) {
+                final int weight = alphaOffset < 0
+                        ? columns.weights[i] * 0xff
+                        : columns.weights[i] * (data[offset + alphaOffset] & 0xff);
+                red += (data[offset + redOffset] & 0xff) * weight;
+                green += (data[offset + greenOffset] & 0xff) * weight;
+                blue += (data[offset + blueOffset] & 0xff) * weight;
+                offset += pixelStride;
+            }
+            reducedRow[x * 3] = red;
+            reducedRow[x * 3 + 1] = green;
+            reducedRow[x * 3 + 2] = blue;
+        }
+    }
+
+    /**
+     * Reads a part of a row of the image as ARGB pixels.
+     */
+    private static void readRow(final BufferedImage image, final int x, final int y, final int width, final int[] row) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+                image.getRaster().getDataElements(x, y, width, 1, row);
+                return;
+            case BufferedImage.TYPE_INT_RGB:
+                image.getRaster().getDataElements(x, y, width, 1, row);
+                for (int i = 0; i < width; i++) {
+                    row[i] |= 0xff000000;
+                }
+                return;
+            default:
+                image.getRGB(x, y, width, 1, row, 0, width);
+        }
+    }
+
+    private static int toChannel(final long sum) {
+        return (int) Math.min(255L, (sum + CHANNEL_SCALE / 2) / CHANNEL_SCALE);
+    }
+
+    /**
+     * The layout of an image with 8-bit sRGB color components which are stored next to each other in a byte array.
+     * This is what PNG and JPEG files are usually decoded into.
+     */
+    private static class InterleavedBytes {
+
+        private final byte[] data;
+
+        private final int baseOffset;
+
+        private final int scanlineStride;
+
+        private final int pixelStride;
+
+        private final int redOffset;
+
+        private final int greenOffset;
+
+        private final int blueOffset;
+
+        /**
+         * The offset of the alpha component, or -1 if the image is opaque.
+         */
+        private final int alphaOffset;
+
+        private InterleavedBytes(final Raster raster, final PixelInterleavedSampleModel sampleModel,
+                                 final boolean hasAlpha) {
+            final DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+            data = dataBuffer.getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            pixelStride = sampleModel.getPixelStride();
+            baseOffset = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * scanlineStride -
+                    raster.getSampleModelTranslateX() * pixelStride;
+            final int[] bandOffsets = sampleModel.getBandOffsets();
+            redOffset = bandOffsets[0];
+            greenOffset = bandOffsets[1];
+            blueOffset = bandOffsets[2];
+            alphaOffset = hasAlpha ? bandOffsets[3] : -1;
+        }
+
+        static @Nullable InterleavedBytes of(final BufferedImage image) {
+            final Raster raster = image.getRaster();
+            final ColorModel colorModel = image.getColorModel();
+            if (!(raster.getDataBuffer() instanceof DataBufferByte) ||
+                    !(raster.getSampleModel() instanceof PixelInterleavedSampleModel) ||
+                    !(colorModel instanceof ComponentColorModel) || !colorModel.getColorSpace().isCS_sRGB() ||
+                    colorModel.isAlphaPremultiplied() || raster.getNumBands() != (colorModel.hasAlpha() ? 4 : 3)) {
+                return null;
+            }
+            return new InterleavedBytes(raster, (PixelInterleavedSampleModel) raster.getSampleModel(),
+                    colorModel.hasAlpha());
+        }
+
+        int getOffset(final int x, final int y) {
+            return baseOffset + y * scanlineStride + x * pixelStride;
+        }
+    }
+
+    /**
+     * Which pixels of the image each pixel of the cell covers along one axis, and how much of each of them.
+     */
+    private static class Axis {
+
+        private int[] starts = new int[0];
+
+        private int[] lengths = new int[0];
+
+        private int[] weightOffsets = new int[0];
+
+        private int[] weights = new int[0];
+
+        /**
+         * @param from   Where the part of the image which is scaled into the cell starts.
+         * @param length The length of the part of the image which is scaled into the cell.
+         * @param limit  The length of the image.
+         */
+        Axis compute(final int cellLength, final double from, final double length, final int limit) {
+            if (starts.length < cellLength) {
+                starts = new int[cellLength];
+                lengths = new int[cellLength];
+                weightOffsets = new int[cellLength];
+            }
+            final double step = length / cellLength;
+            int weightCount = 0;
+            for (int i = 0; i < cellLength; i++) {
+                final double spanStart = Math.max(0.0, from + i * step);
+                final double spanEnd = Math.min(limit, Math.max(spanStart, from + (i + 1) * step));
+                final int start = Math.min(limit - 1, (int) spanStart);
+                final int end = Math.max(start + 1, Math.min(limit, (int) Math.ceil(spanEnd)));
+                starts[i] = start;
+                lengths[i] = end - start;
+                weightOffsets[i] = weightCount;
+                weightCount += end - start;
+            }
+            if (weights.length < weightCount) {
+                weights = new int[weightCount];
+            }
+            for (int i = 0; i < cellLength; i++) {
+                final double spanStart = Math.max(0.0, from + i * step);
+                final double spanEnd = Math.min(limit, Math.max(spanStart, from + (i + 1) * step));
+                final double spanLength = spanEnd - spanStart;
+                int remainingWeight = 1 << WEIGHT_BITS;
+                for (int j = 0; j < lengths[i] - 1; j++) {
+                    final int pixel = starts[i] + j;
+                    final double covered = Math.min(spanEnd, pixel + 1) - Math.max(spanStart, pixel);
+                    final int weight = spanLength > 0.0
+                            ? Math.min(remainingWeight, (int) Math.round(covered / spanLength * (1 << WEIGHT_BITS)))
+                            : 0;
+                    weights[weightOffsets[i] + j] = weight;
+                    remainingWeight -= weight;
+                }
+                // The last pixel takes whatever is left so that the weights always add up to exactly one
+                weights[weightOffsets[i] + lengths[i] - 1] = remainingWeight;
+            }
+            return this;
+        }
+    }
+
+    private static class Scratch {
+
+        private final Axis columns = new Axis();
+
+        private final Axis rows = new Axis();
+
+        private int[] row = new int[0];
+
+        private int[] reducedRow = new int[0];
+
+        private long[] sums = new long[0];
+
+        private int[] cell = new int[0];
+
+        int[] row(final int length) {
+            if (row.length < length) {
+                row = new int[length];
+            }
+            return row;
+        }
+
+        int[] reducedRow(final int cellWidth) {
+            if (reducedRow.length < cellWidth * 3) {
+                reducedRow = new int[cellWidth * 3];
+            }
+            return reducedRow;
+        }
+
+        long[] sums(final int cellWidth) {
+            if (sums.length < cellWidth * 3) {
+                sums = new long[cellWidth * 3];
+            }
+            return sums;
+        }
+
+        int[] cell(final int length) {
+            if (cell.length < length) {
+                cell = new int[length];
+            }
+            return cell;
+        }
+    }
+}
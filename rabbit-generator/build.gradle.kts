@@ -77,3 +77,14 @@ tasks.create<JavaExec>("generateRabbit") {
     }
 }
 
+tasks.create<JavaExec>("serveRabbit") {
+    setDependsOn(listOf(":rabbitpage:buildAll"))
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("moe.mewore.web.rabbit.generator.RabbitServer")
+
+    val rabbitDiaryDir = environment["RABBIT_DIARY_DIR"]
+    val templateDir = project(":rabbitpage").projectDir.resolve("template").path
+    if (rabbitDiaryDir != null) {
+        args = listOf(rabbitDiaryDir.toString(), templateDir)
+    }
+}
@@ -0,0 +1,320 @@
+package moe.mewore.web.rabbit.generator;
+
+import moe.mewore.imagediary.DiaryFile;
+import moe.mewore.imagediary.ImageDay;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory of files named after the hashes of their contents, e.g. "assets/0a1b2c3d4e5f6a7b8c9d.png", into which
+ * the images, the thumbnails and the files next to the template are published so that the pages can link to them by
+ * names which never point to anything else. They can be cached by browsers forever. Files with the same content are
+ * stored once.
+ * <p>
+ * The hash of a file is kept in the manifest along with its size and modification time, so a file is hashed again only
+ * if either of them has changed, and it is not written again if its hashed name already exists.
+ */
+class AssetStore {
+
+    static final String DIRECTORY_NAME = "assets";
+
+    /**
+     * The prefix of the names of the published files in the manifest, which keeps them apart from the generated files.
+     */
+    private static final String SOURCE_PREFIX = "asset-source:";
+
+    /**
+     * The number of hexadecimal digits of the hash of a file which are used in its name.
+     */
+    private static final int NAME_LENGTH = 20;
+
+    private static final Pattern CSS_URL_PATTERN = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+
+    private static final Pattern TEMPLATE_URL_PATTERN = Pattern.compile(
+            Pattern.quote(RabbitTemplate.Placeholder.PATH_TO_RABBIT_ROOT.getToken() + "/") + "([^'\"()\\s?#]+)");
+
+    private final Path directory;
+
+    private final GenerationManifest previousManifest;
+
+    private final GenerationManifest manifest;
+
+    private final PrecompressedFiles precompressedFiles;
+
+    /**
+     * The names of the files in the store which have been published during this generation.
+     */
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, String> thumbnailNames = new ConcurrentHashMap<>();
+
+    private final Map<String, String> imageNames = new ConcurrentHashMap<>();
+
+    final AtomicInteger publishedCount = new AtomicInteger();
+
+    final AtomicInteger hashedCount = new AtomicInteger();
+
+    final AtomicInteger writtenCount = new AtomicInteger();
+
+    /**
+     * @param rootDirectory The directory of the root page, in which the store has its own directory.
+     */
+    AssetStore(final Path rootDirectory, final GenerationManifest previousManifest, final GenerationManifest manifest,
+               final PrecompressedFiles precompressedFiles) {
+        directory = rootDirectory.resolve(DIRECTORY_NAME);
+        this.previousManifest = previousManifest;
+        this.manifest = manifest;
+        this.precompressedFiles = precompressedFiles;
+    }
+
+    /**
+     * Publishes the files in the source directory and its subdirectories. The stylesheets are published last, with
+     * the URLs of the other files in them replaced with the names of the published files.
+     *
+     * @return The names of the published files by the paths of the source files relative to the source directory.
+     */
+    Map<String, String> publishTemplateFiles(final Path source, final Set<String> excluded) throws IOException {
+        Files.createDirectories(directory);
+        final List<Path> files;
+        try (final Stream<Path> sourceFiles = Files.walk(source)) {
+            files = sourceFiles.filter(Files::isRegularFile)
+                    .filter(file -> !excluded.contains(source.relativize(file).toString()) &&
+                            !file.getFileName().toString().endsWith("~"))
+                    .collect(Collectors.toList());
+        }
+        final Map<String, String> result = new ConcurrentHashMap<>();
+        files.stream().filter(file -> !isStylesheet(file)).parallel().forEach(file -> {
+            final String relativePath = toUrlPath(source.relativize(file));
+            try (final @Nullable DiaryFile sourceFile = DiaryFile.open(file)) {
+                if (sourceFile != null) {
+                    result.put(relativePath, publish("template/" + relativePath, getExtension(file), sourceFile));
+                }
+            } catch (final IOException e) {
+                System.err.println("Failed to publish " + file + " into the asset store");
+                e.printStackTrace();
+            }
+        });
+        for (final Path file : files) {
+            if (isStylesheet(file)) {
+                final String relativePath = toUrlPath(source.relativize(file));
+                final String content = rewriteStylesheet(Files.readString(file), source, file.getParent(), result);
+                result.put(relativePath, publish(getExtension(file), content.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Publishes the images of the days and those of their thumbnails which have been saved, in parallel.
+     */
+    void publishDays(final List<ImageDay> days) throws IOException {
+        Files.createDirectories(directory);
+        days.parallelStream().forEach(day -> {
+            final String dayPath = RabbitPages.RABBIT_IMAGE_DIR_NAME + "/" + day.getDate() + "/";
+            try {
+                try (final @Nullable DiaryFile thumbnailFile = day.openThumbnailFile()) {
+                    if (thumbnailFile != null) {
+                        thumbnailNames.put(day.getDate(), publish(dayPath + day.getThumbnailFileName(),
+                                getExtension(Path.of(day.getThumbnailFileName())), thumbnailFile));
+                    }
+                }
+                for (int hour = 0; hour < 24; hour++) {
+                    if (((day.getImageMask() >> hour) & 1) == 0) {
+                        continue;
+                    }
+                    try (final @Nullable DiaryFile imageFile = day.openImageFile(hour)) {
+                        if (imageFile != null) {
+                            imageNames.put(day.getDate() + "-" + hour,
+                                    publish(dayPath + "rabbit-" + day.getDate() + "-" + hour + ".png", "png",
+                                            imageFile));
+                        }
+                    }
+                }
+            } catch (final IOException e) {
+                System.err.println("Failed to publish the files of day " + day.getDate() + " into the asset store");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * @return The name of the published thumbnail of the day, or null if it has not been published.
+     */
+    @Nullable String getThumbnailName(final String date) {
+        return thumbnailNames.get(date);
+    }
+
+    /**
+     * @return The name of the published image, or null if it has not been published.
+     */
+    @Nullable String getImageName(final String date, final int hour) {
+        return imageNames.get(date + "-" + hour);
+    }
+
+    /**
+     * Replaces the URLs of the published files next to the template, e.g. "[PATH_TO_RABBIT_ROOT]/rabbits.css", with
+     * their URLs in the store.
+     *
+     * @param names The names of the published files by their paths relative to the template.
+     */
+    static List<String> rewriteTemplate(final List<String> lines, final Map<String, String> names) {
+        return lines.stream().map(line -> {
+            final Matcher matcher = TEMPLATE_URL_PATTERN.matcher(line);
+            return matcher.replaceAll(match -> {
+                final @Nullable String name = names.get(match.group(1));
+                return Matcher.quoteReplacement(name == null ? match.group() :
+                        RabbitTemplate.Placeholder.PATH_TO_RABBIT_ROOT.getToken() + "/" + DIRECTORY_NAME + "/" + name);
+            });
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Deletes the files in the store which have not been published during this generation, along with their
+     * compressed copies.
+     */
+    void deleteUnusedFiles() throws IOException {
+        final List<Path> unusedFiles;
+        try (final Stream<Path> files = Files.list(directory)) {
+            unusedFiles = files.filter(file -> {
+                final String name = file.getFileName().toString();
+                return !names.contains(name.endsWith(PrecompressedFiles.GZIP_EXTENSION) ?
+                        name.substring(0, name.length() - PrecompressedFiles.GZIP_EXTENSION.length()) : name);
+            }).collect(Collectors.toList());
+        }
+        for (final Path file : unusedFiles) {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * @param sourceName The name of the source file in the manifest, which should be the same in every generation.
+     * @return The name of the published file in the store.
+     */
+    private String publish(final String sourceName, final String extension, final DiaryFile file) throws IOException {
+        final String attributes = file.getSize() + ":" + file.getLastModified() + ":";
+        final @Nullable String previousHash = previousManifest.getContentHash(SOURCE_PREFIX + sourceName);
+        final String hash;
+        if (previousHash != null && previousHash.startsWith(attributes)) {
+            hash = previousHash.substring(attributes.length());
+        } else {
+            hash = hash(file);
+            hashedCount.incrementAndGet();
+        }
+        manifest.putContentHash(SOURCE_PREFIX + sourceName, attributes + hash);
+        final String name = hash.substring(0, NAME_LENGTH) + "." + extension;
+        publishedCount.incrementAndGet();
+        final Path target = directory.resolve(name);
+        if (!addName(target)) {
+            return name;
+        }
+        final Path tmpFile = target.resolveSibling("." + name + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            file.transferTo(0L, file.getSize(), channel);
+        }
+        moveIntoStore(tmpFile, target);
+        return name;
+    }
+
+    private String publish(final String extension, final byte[] content) throws IOException {
+        final String hash = GenerationManifest.toHex(GenerationManifest.createDigest().digest(content));
+        final String name = hash.substring(0, NAME_LENGTH) + "." + extension;
+        publishedCount.incrementAndGet();
+        final Path target = directory.resolve(name);
+        if (!addName(target)) {
+            return name;
+        }
+        final Path tmpFile = target.resolveSibling("." + name + ".tmp");
+        Files.write(tmpFile, content);
+        moveIntoStore(tmpFile, target);
+        return name;
+    }
+
+    /**
+     * @return Whether the file has to be written, which it does not if it has been published already.
+     */
+    private boolean addName(final Path file) {
+        if (!names.add(file.getFileName().toString())) {
+            return false;
+        }
+        if (PrecompressedFiles.isCompressible(file)) {
+            precompressedFiles.add(file);
+        }
+        return !Files.isRegularFile(file);
+    }
+
+    private void moveIntoStore(final Path tmpFile, final Path target) throws IOException {
+        Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenCount.incrementAndGet();
+    }
+
+    private static String hash(final DiaryFile file) throws IOException {
+        final MessageDigest digest = GenerationManifest.createDigest();
+        file.transferTo(0L, file.getSize(), new WritableByteChannel() {
+            @Override
+            public int write(final ByteBuffer source) {
+                final int count = source.remaining();
+                digest.update(source);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return GenerationManifest.toHex(digest.digest());
+    }
+
+    /**
+     * Replaces the relative URLs in a stylesheet which point to published files with their names, which are relative
+     * to the stylesheet in the store as well.
+     */
+    private static String rewriteStylesheet(final String content, final Path source, final Path stylesheetDirectory,
+                                            final Map<String, String> names) {
+        return CSS_URL_PATTERN.matcher(content).replaceAll(match -> {
+            final Path target = stylesheetDirectory.resolve(match.group(2).trim()).normalize();
+            final @Nullable String name =
+                    target.startsWith(source) ? names.get(toUrlPath(source.relativize(target))) : null;
+            return Matcher.quoteReplacement(
+                    name == null ? match.group() : "url(" + match.group(1) + name + match.group(1) + ")");
+        });
+    }
+
+    private static boolean isStylesheet(final Path file) {
+        return getExtension(file).equals("css");
+    }
+
+    private static String getExtension(final Path file) {
+        final String name = file.getFileName().toString();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String toUrlPath(final Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+}
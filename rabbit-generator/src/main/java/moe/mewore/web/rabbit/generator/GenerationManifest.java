@@ -0,0 +1,107 @@
+package moe.mewore.web.rabbit.generator;
+
+import lombok.RequiredArgsConstructor;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The signatures of the inputs of each page that has been generated, which make it possible to skip generating the
+ * pages whose inputs have not changed, and the hashes of the contents of the files which have been compressed or
+ * published into the asset store, which make it possible to skip compressing or hashing them again.
+ */
+@RequiredArgsConstructor
+class GenerationManifest {
+
+    static final String FILE_NAME = ".rabbit-manifest";
+
+    private static final String CONTENT_HASH_PREFIX = "content:";
+
+    private final Map<String, String> pageSignatures;
+
+    private final Map<String, String> contentHashes;
+
+    static GenerationManifest empty() {
+        return new GenerationManifest(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    static GenerationManifest load(final Path directory) {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(directory.resolve(FILE_NAME), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (final NoSuchFileException e) {
+            return empty();
+        } catch (final IOException e) {
+            System.err.println("Failed to read the generation manifest in " + directory +
+                               "; all pages will be generated");
+            e.printStackTrace();
+            return empty();
+        }
+        final GenerationManifest manifest = empty();
+        for (final String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CONTENT_HASH_PREFIX)) {
+                manifest.contentHashes.put(key.substring(CONTENT_HASH_PREFIX.length()), properties.getProperty(key));
+            } else {
+                manifest.pageSignatures.put(key, properties.getProperty(key));
+            }
+        }
+        return manifest;
+    }
+
+    @Nullable String getSignature(final String page) {
+        return pageSignatures.get(page);
+    }
+
+    void putSignature(final String page, final String signature) {
+        pageSignatures.put(page, signature);
+    }
+
+    @Nullable String getContentHash(final String file) {
+        return contentHashes.get(file);
+    }
+
+    void putContentHash(final String file, final String hash) {
+        contentHashes.put(file, hash);
+    }
+
+    void save(final Path directory) throws IOException {
+        final Properties properties = new Properties();
+        properties.putAll(new TreeMap<>(pageSignatures));
+        new TreeMap<>(contentHashes).forEach((file, hash) -> properties.put(CONTENT_HASH_PREFIX + file, hash));
+        final Path tmpFile = directory.resolve(FILE_NAME + ".tmp");
+        try (final Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            properties.store(writer, "Signatures of the inputs of the generated pages and hashes of compressed files");
+        }
+        Files.move(tmpFile, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 should be supported by every Java platform", e);
+        }
+    }
+
+    static String toHex(final byte[] bytes) {
+        final StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (final byte value : bytes) {
+            result.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+        return result.toString();
+    }
+}
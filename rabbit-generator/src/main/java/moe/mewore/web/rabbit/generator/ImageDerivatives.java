@@ -0,0 +1,241 @@
+package moe.mewore.web.rabbit.generator;
+
+import moe.mewore.imagediary.DiaryFile;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.ThumbnailEncoder;
+import moe.mewore.imagediary.ThumbnailScaler;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Writes smaller versions of the images of the diary, e.g. 256, 512 and 1024 pixels wide, in one or more formats, so
+ * that whoever shows an image can pick the smallest one that is large enough with a srcset. The versions of an image
+ * are written again only if the size or the modification time of the image has changed.
+ */
+class ImageDerivatives {
+
+    static final String DIRECTORY_NAME = "rabbit-derivatives";
+
+    private final Path directory;
+
+    /**
+     * The widths of the smaller versions in ascending order. An image gets only those which are smaller than it.
+     */
+    private final int[] widths;
+
+    private final List<ThumbnailEncoder> encoders;
+
+    private final GenerationManifest previousManifest;
+
+    private final GenerationManifest manifest;
+
+    /**
+     * The widths and heights of the images for which the smaller versions exist, by their names.
+     */
+    private final Map<String, int[]> sourceSizes = new ConcurrentHashMap<>();
+
+    private final Set<Path> files = ConcurrentHashMap.newKeySet();
+
+    final AtomicInteger writtenCount = new AtomicInteger();
+
+    final AtomicInteger skippedCount = new AtomicInteger();
+
+    /**
+     * @param rootDirectory The directory of the root page, in which the smaller versions have their own directory.
+     */
+    ImageDerivatives(final Path rootDirectory, final int[] widths, final List<ThumbnailEncoder> encoders,
+                     final GenerationManifest previousManifest, final GenerationManifest manifest) {
+        if (widths.length == 0 || encoders.isEmpty() || Arrays.stream(widths).anyMatch(width -> width < 1)) {
+            throw new IllegalArgumentException("There should be at least one positive width (" +
+                                               Arrays.toString(widths) + ") and at least one format");
+        }
+        directory = rootDirectory.resolve(DIRECTORY_NAME);
+        this.widths = Arrays.stream(widths).sorted().distinct().toArray();
+        this.encoders = encoders;
+        this.previousManifest = previousManifest;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Writes the smaller versions of all images of the days which are not up to date in parallel and deletes those of
+     * the images which no longer exist.
+     */
+    void update(final List<ImageDay> days) throws IOException {
+        Files.createDirectories(directory);
+        days.stream()
+                .flatMap(day -> IntStream.range(0, 24)
+                        .filter(hour -> (day.getImageMask() & (1 << hour)) != 0)
+                        .mapToObj(hour -> Map.entry(day, hour)))
+                .collect(Collectors.toList())
+                .parallelStream()
+                .forEach(image -> {
+                    try {
+                        update(image.getKey(), image.getValue());
+                    } catch (final IOException e) {
+                        System.err.println("Failed to write the smaller versions of image " + image.getValue() +
+                                           " of day " + image.getKey().getDate());
+                        e.printStackTrace();
+                    }
+                });
+        deleteUnusedFiles();
+    }
+
+    private void update(final ImageDay day, final int hour) throws IOException {
+        final String name = getImageName(day.getDate(), hour);
+        final Path dayDirectory = directory.resolve(day.getDate());
+        try (final @Nullable DiaryFile imageFile = day.openImageFile(hour)) {
+            if (imageFile == null) {
+                return;
+            }
+            final String signature = imageFile.getSize() + ":" + imageFile.getLastModified() + ":" +
+                    Arrays.toString(widths) + ":" +
+                    encoders.stream().map(ThumbnailEncoder::getSignature).collect(Collectors.joining(","));
+            // The size of the image is kept after the signature so that the image does not have to be decoded again
+            final @Nullable String previousSignature = previousManifest.getSignature(DIRECTORY_NAME + "/" + name);
+            final int @Nullable [] previousSize = previousSignature != null &&
+                    previousSignature.startsWith(signature + "|") ?
+                    parseSize(previousSignature.substring(signature.length() + 1)) : null;
+            if (previousSize != null) {
+                final List<Path> existingFiles = getFiles(dayDirectory, name, previousSize[0]);
+                if (existingFiles.stream().allMatch(Files::isRegularFile)) {
+                    files.addAll(existingFiles);
+                    sourceSizes.put(name, previousSize);
+                    manifest.putSignature(DIRECTORY_NAME + "/" + name, previousSignature);
+                    skippedCount.incrementAndGet();
+                    return;
+                }
+            }
+
+            final ByteArrayOutputStream imageData = new ByteArrayOutputStream((int) imageFile.getSize());
+            imageFile.transferTo(0L, imageFile.getSize(), Channels.newChannel(imageData));
+            final @Nullable BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData.toByteArray()));
+            if (image == null) {
+                throw new IOException("Could not decode image " + hour + " of day " + day.getDate());
+            }
+            Files.createDirectories(dayDirectory);
+            for (final int width : widths) {
+                if (width >= image.getWidth()) {
+                    break;
+                }
+                final BufferedImage scaledImage = ThumbnailScaler.scaleToWidth(image, width);
+                for (final ThumbnailEncoder encoder : encoders) {
+                    final byte @Nullable [] data = encoder.encode(scaledImage);
+                    if (data == null) {
+                        throw new IOException("There is no writer for the format " + encoder.getSignature());
+                    }
+                    final Path file = dayDirectory.resolve(getFileName(name, width, encoder));
+                    final Path tmpFile = file.resolveSibling("." + file.getFileName() + ".tmp");
+                    Files.write(tmpFile, data);
+                    Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    files.add(file);
+                }
+            }
+            sourceSizes.put(name, new int[]{image.getWidth(), image.getHeight()});
+            manifest.putSignature(DIRECTORY_NAME + "/" + name,
+                    signature + "|" + image.getWidth() + "x" + image.getHeight());
+            writtenCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The width and the height in a "[width]x[height]" size, or null if it is not like that.
+     */
+    private static int @Nullable [] parseSize(final String size) {
+        final int separatorIndex = size.indexOf('x');
+        try {
+            return separatorIndex < 0 ? null : new int[]{Integer.parseInt(size.substring(0, separatorIndex)),
+                    Integer.parseInt(size.substring(separatorIndex + 1))};
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private List<Path> getFiles(final Path dayDirectory, final String name, final int sourceWidth) {
+        return Arrays.stream(widths)
+                .filter(width -> width < sourceWidth)
+                .boxed()
+                .flatMap(width -> encoders.stream().map(encoder -> getFileName(name, width, encoder)))
+                .map(dayDirectory::resolve)
+                .collect(Collectors.toList());
+    }
+
+    private void deleteUnusedFiles() throws IOException {
+        final List<Path> unusedFiles;
+        try (final Stream<Path> existingFiles = Files.walk(directory, 2)) {
+            unusedFiles = existingFiles.filter(file -> !file.equals(directory) && !files.contains(file))
+                    .sorted(Comparator.reverseOrder())
+                    .collect(Collectors.toList());
+        }
+        for (final Path file : unusedFiles) {
+            // The directories come after their files, so only those of the days without any images are empty
+            if (!Files.isDirectory(file) || isEmpty(file)) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static boolean isEmpty(final Path directory) throws IOException {
+        try (final Stream<Path> children = Files.list(directory)) {
+            return children.findAny().isEmpty();
+        }
+    }
+
+    /**
+     * @return The attributes of the link to the image with the size of the image and its smaller versions in each
+     * format, in the order of the formats, e.g. {@code data-width="700" data-height="900"
+     * data-srcset-png="[URL] 256w, [URL] 512w, [URL of the image] 700w"}, or an empty string if the image has none.
+     * The page script shows the image from them.
+     */
+    String getLinkAttributes(final String pathToRootPage, final String date, final int hour) {
+        final String name = getImageName(date, hour);
+        final int @Nullable [] sourceSize = sourceSizes.get(name);
+        if (sourceSize == null) {
+            return "";
+        }
+        final String dayUrl = pathToRootPage + "/" + DIRECTORY_NAME + "/" + date + "/";
+        final String imageUrl =
+                pathToRootPage + "/" + RabbitPages.RABBIT_IMAGE_DIR_NAME + "/" + date + "/" + name + ".png";
+        final StringBuilder result = new StringBuilder();
+        result.append(" data-width=\"").append(sourceSize[0]).append("\" data-height=\"").append(sourceSize[1])
+                .append('"');
+        for (final ThumbnailEncoder encoder : encoders) {
+            result.append(" data-srcset-").append(encoder.getFileExtension()).append("=\"");
+            for (final int width : widths) {
+                if (width >= sourceSize[0]) {
+                    break;
+                }
+                result.append(dayUrl).append(getFileName(name, width, encoder)).append(' ').append(width)
+                        .append("w, ");
+            }
+            result.append(imageUrl).append(' ').append(sourceSize[0]).append("w\"");
+        }
+        return result.toString();
+    }
+
+    private static String getImageName(final String date, final int hour) {
+        return "rabbit-" + date + "-" + hour;
+    }
+
+    private static String getFileName(final String imageName, final int width, final ThumbnailEncoder encoder) {
+        return imageName + "-" + width + "." + encoder.getFileExtension();
+    }
+}
@@ -0,0 +1,127 @@
+package moe.mewore.web.rabbit.generator;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a copy compressed with gzip next to each of the generated files, e.g. "index.html.gz" next to "index.html",
+ * so that the web server can send it as it is instead of compressing the file for every request. A file whose content
+ * is the same as when its compressed copy was written is not compressed again.
+ */
+class PrecompressedFiles {
+
+    static final String GZIP_EXTENSION = ".gz";
+
+    /**
+     * The extensions of the files which are worth compressing. Images are already compressed.
+     */
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of("html", "css", "js", "svg", "txt", "json");
+
+    private final Path directory;
+
+    /**
+     * The gzip level from 1 to 9, or 0 if no compressed copies should be written.
+     */
+    private final int level;
+
+    private final GenerationManifest previousManifest;
+
+    private final GenerationManifest manifest;
+
+    private final Queue<Path> files = new ConcurrentLinkedQueue<>();
+
+    final AtomicInteger compressedCount = new AtomicInteger();
+
+    final AtomicInteger skippedCount = new AtomicInteger();
+
+    /**
+     * @param directory The directory that the files are in, relative to which they are named in the manifests.
+     */
+    PrecompressedFiles(final Path directory, final int level, final GenerationManifest previousManifest,
+                       final GenerationManifest manifest) {
+        if (level < 0 || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("The compression level should be from 0 to 9 but it is " + level);
+        }
+        this.directory = directory;
+        this.level = level;
+        this.previousManifest = previousManifest;
+        this.manifest = manifest;
+    }
+
+    static boolean isCompressible(final Path file) {
+        final String name = file.getFileName().toString();
+        return COMPRESSIBLE_EXTENSIONS.contains(name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Makes the file be compressed by {@link #compressAll()}.
+     */
+    void add(final Path file) {
+        files.add(file);
+    }
+
+    /**
+     * Compresses all added files in parallel. If compression is turned off, their existing compressed copies are
+     * deleted instead so that they cannot be sent in place of newer files.
+     */
+    void compressAll() {
+        files.stream().parallel().forEach(file -> {
+            try {
+                compress(file);
+            } catch (final IOException e) {
+                System.err.println("Failed to compress " + file);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void compress(final Path file) throws IOException {
+        final Path compressedFile = file.resolveSibling(file.getFileName() + GZIP_EXTENSION);
+        if (level == 0) {
+            Files.deleteIfExists(compressedFile);
+            return;
+        }
+        final byte[] content = Files.readAllBytes(file);
+        final String name = directory.relativize(file).toString();
+        final String hash = GenerationManifest.toHex(GenerationManifest.createDigest().digest(content));
+        final @Nullable String previousHash = previousManifest.getContentHash(name);
+        // The level is part of the hash so that changing it compresses everything again
+        final String hashWithLevel = hash + ":" + level;
+        manifest.putContentHash(name, hashWithLevel);
+        if (hashWithLevel.equals(previousHash) && Files.isRegularFile(compressedFile)) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+        final Path tmpFile = compressedFile.resolveSibling("." + compressedFile.getFileName() + ".tmp");
+        Files.write(tmpFile, gzip(content, level));
+        Files.move(tmpFile, compressedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        compressedCount.incrementAndGet();
+    }
+
+    static byte[] gzip(final byte[] content, final int level) {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (final OutputStream gzip = new GZIPOutputStream(result) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(content);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Writing into memory should not fail", e);
+        }
+        return result.toByteArray();
+    }
+}
@@ -1,22 +1,34 @@
 package moe.mewore.web.rabbit.generator;
 
 import lombok.RequiredArgsConstructor;
+import moe.mewore.imagediary.DiaryMetrics;
+import moe.mewore.imagediary.DiaryOperation;
+import moe.mewore.imagediary.HistogramDiaryMetrics;
+import moe.mewore.imagediary.ImageDataMode;
 import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.ImageDayCache;
 import moe.mewore.imagediary.ImageDiary;
+import moe.mewore.imagediary.JfrDiaryMetrics;
 import moe.mewore.imagediary.LocalImageDiary;
-import org.checkerframework.checker.nullness.qual.NonNull;
+import moe.mewore.imagediary.LocalImageDiaryOptions;
+import moe.mewore.imagediary.ThumbnailEncoder;
+import moe.mewore.imagediary.ThumbnailPipeline;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -24,8 +36,9 @@ import java.util.stream.Stream;
 public class RabbitGenerator {
     private static final int ARG_COUNT = 3;
 
-    private static final String INDEX_FILE = "index.html";
-    private static final String RABBIT_IMAGE_DIR_NAME = "rabbit-drawings";
+    static final long IMAGE_DAY_CACHE_BUDGET = 64L * 1024L * 1024L;
+
+    static final String INDEX_FILE = "index.html";
 
     private static final String[] ARG_DESCRIPTIONS = {
             "Rabbit diary directory (directory with YYYY-MM-DD directories, each containing rabbit images)",
@@ -33,10 +46,80 @@ public class RabbitGenerator {
             "Target directory of the generated HTML pages",
     };
 
+    /**
+     * Makes the generator keep the target directory and update only the pages whose inputs have changed.
+     */
+    private static final String INCREMENTAL_FLAG = "--incremental";
+
+    /**
+     * Sets the number of days whose thumbnails are created at the same time. By default, it is the number of
+     * available processors.
+     */
+    private static final String THUMBNAIL_THREADS_OPTION = "--thumbnail-threads=";
+
+    /**
+     * Sets the format of the thumbnails: "png", "png:[deflate level]", "indexed-png" or "jpeg:[quality]".
+     */
+    private static final String THUMBNAIL_FORMAT_OPTION = "--thumbnail-format=";
+
+    static final String DEFAULT_THUMBNAIL_FORMAT = "png:9";
+
+    /**
+     * Sets the gzip level (1-9) of the compressed copies of the pages, styles and scripts, or turns them off with 0. By
+     * default, it is 9 because they are compressed only when they change.
+     */
+    private static final String COMPRESSION_LEVEL_OPTION = "--compression-level=";
+
+    private static final int DEFAULT_COMPRESSION_LEVEL = 9;
+
+    /**
+     * Makes the pages show the thumbnails of their days from a single image for each month instead of the thumbnail of
+     * each day.
+     */
+    private static final String THUMBNAIL_ATLAS_FLAG = "--thumbnail-atlas";
+
+    /**
+     * Makes the generator write smaller versions of the images with these widths, e.g. "256,512,1024", and list them
+     * in the links to the images.
+     */
+    private static final String DERIVATIVE_WIDTHS_OPTION = "--derivative-widths=";
+
+    /**
+     * Sets the formats of the smaller versions of the images, e.g. "png:9,jpeg:0.85", in the same way as the format of
+     * the thumbnails. Browsers use the first one that they support, so the rest are only for those which do not. By
+     * default, only PNG is used because JPEG would draw the transparent background of the drawings black.
+     */
+    private static final String DERIVATIVE_FORMATS_OPTION = "--derivative-formats=";
+
+    private static final String DEFAULT_DERIVATIVE_FORMATS = "png:9";
+
+    /**
+     * Makes the pages link to copies of the images, the thumbnails and the files next to the template which are named
+     * after the hashes of their contents, so that they can be cached forever. The copies and their hashes are kept by
+     * full generations as well, so only the files which have changed are hashed and copied again.
+     */
+    private static final String HASHED_ASSETS_FLAG = "--hashed-assets";
+
+    private static final Pattern MONTH_DIRECTORY_PATTERN = Pattern.compile("\\d{4}-\\d{2}");
+
     final ImageDiary rabbitDiary;
     private final Path rabbitDiaryDir;
     private final Path htmlSourceDir;
     private final Path htmlTargetDir;
+    private final boolean incremental;
+    private final int thumbnailThreadCount;
+    private final int compressionLevel;
+    /**
+     * The encoder of the thumbnail atlases of the months, or null if the days should use their own thumbnails.
+     */
+    private final @Nullable ThumbnailEncoder thumbnailAtlasEncoder;
+    /**
+     * The widths of the smaller versions of the images, or an empty array if there should be none.
+     */
+    private final int[] derivativeWidths;
+    private final List<ThumbnailEncoder> derivativeEncoders;
+    private final boolean hashedAssets;
+    private final DiaryMetrics metrics;
 
     public static void main(final String[] args) throws IllegalArgumentException, IOException {
         if (args.length < ARG_COUNT) {
@@ -76,262 +159,360 @@ public class RabbitGenerator {
                     ARG_DESCRIPTIONS[currentArg - 1], htmlTargetDir));
         }
 
+        boolean incremental = false;
+        int thumbnailThreadCount = Runtime.getRuntime().availableProcessors();
+        ThumbnailEncoder thumbnailEncoder = ThumbnailEncoder.fromName(DEFAULT_THUMBNAIL_FORMAT);
+        int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        boolean thumbnailAtlas = false;
+        int[] derivativeWidths = new int[0];
+        String derivativeFormats = DEFAULT_DERIVATIVE_FORMATS;
+        boolean hashedAssets = false;
+        for (; currentArg < args.length && args[currentArg].startsWith("--"); currentArg++) {
+            if (args[currentArg].equals(INCREMENTAL_FLAG)) {
+                incremental = true;
+            } else if (args[currentArg].startsWith(THUMBNAIL_THREADS_OPTION)) {
+                thumbnailThreadCount = Integer.parseInt(args[currentArg].substring(THUMBNAIL_THREADS_OPTION.length()));
+            } else if (args[currentArg].startsWith(THUMBNAIL_FORMAT_OPTION)) {
+                thumbnailEncoder =
+                        ThumbnailEncoder.fromName(args[currentArg].substring(THUMBNAIL_FORMAT_OPTION.length()));
+            } else if (args[currentArg].equals(THUMBNAIL_ATLAS_FLAG)) {
+                thumbnailAtlas = true;
+            } else if (args[currentArg].startsWith(DERIVATIVE_WIDTHS_OPTION)) {
+                derivativeWidths = Arrays.stream(
+                        args[currentArg].substring(DERIVATIVE_WIDTHS_OPTION.length()).split(","))
+                        .mapToInt(Integer::parseInt)
+                        .toArray();
+            } else if (args[currentArg].startsWith(DERIVATIVE_FORMATS_OPTION)) {
+                derivativeFormats = args[currentArg].substring(DERIVATIVE_FORMATS_OPTION.length());
+            } else if (args[currentArg].equals(HASHED_ASSETS_FLAG)) {
+                hashedAssets = true;
+            } else if (args[currentArg].startsWith(COMPRESSION_LEVEL_OPTION)) {
+                compressionLevel = Integer.parseInt(args[currentArg].substring(COMPRESSION_LEVEL_OPTION.length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[currentArg]);
+            }
+        }
+
         if (currentArg != args.length) {
             throw new IllegalArgumentException(MessageFormat.format("The arguments should be {0}. There are redundant" +
                                                                     " arguments: {1}", ARG_COUNT,
                     Arrays.stream(args).skip(currentArg).collect(Collectors.joining(" "))));
         }
 
+        final List<ThumbnailEncoder> derivativeEncoders = Arrays.stream(derivativeFormats.split(","))
+                .map(ThumbnailEncoder::fromName)
+                .collect(Collectors.toList());
+
+        // The generated pages link to the image files directly so there is no need to keep their data in memory
+        final ImageDayCache cache = new ImageDayCache(IMAGE_DAY_CACHE_BUDGET);
+        final HistogramDiaryMetrics histogramMetrics = new HistogramDiaryMetrics();
+        // The events are recorded only when the generator is run with e.g. -XX:StartFlightRecording
+        final DiaryMetrics metrics = new JfrDiaryMetrics(histogramMetrics);
         final ImageDiary rabbitDiary = new LocalImageDiary(new File[]{diaryDir}, RabbitGenerator::readPngImage,
-                RabbitGenerator::readTextFile);
-        new RabbitGenerator(rabbitDiary, diaryDir.toPath(), htmlSourceDir, htmlTargetDir).generate();
+                RabbitGenerator::readTextFile, LocalImageDiaryOptions.builder()
+                .imageDataMode(ImageDataMode.ORIGINAL_FILE)
+                .cache(cache)
+                .thumbnailEncoder(thumbnailEncoder)
+                .metrics(metrics)
+                .build());
+        new RabbitGenerator(rabbitDiary, diaryDir.toPath(), htmlSourceDir, htmlTargetDir, incremental,
+                thumbnailThreadCount, compressionLevel, thumbnailAtlas ? thumbnailEncoder : null, derivativeWidths,
+                derivativeEncoders, hashedAssets, metrics).generate();
+        System.out.println("Image day cache: " + cache);
+        System.out.println("Rabbit diary metrics:" + System.lineSeparator() + histogramMetrics);
     }
 
     private void generate() throws IOException {
         final List<ImageDay> days = rabbitDiary.getDaysReversed();
-        for (final ImageDay day : days) {
-            day.createThumbnailFile();
-        }
+        createThumbnailFiles(days);
+        rabbitDiary.saveIndex();
         System.out.printf("Rabbit diary size: %d MB (%d days)%n", rabbitDiary.getSize() / 1024L / 1024L, days.size());
 
-        System.out.println("Deleting: " + htmlTargetDir.toAbsolutePath());
-        if (!deleteRecursively(htmlTargetDir.toFile())) {
-            throw new RuntimeException("Failed to delete directory " + htmlTargetDir);
+        final GenerationManifest previousManifest = incremental ? GenerationManifest.load(htmlTargetDir) :
+                GenerationManifest.empty();
+        final GenerationManifest previousAssetManifest =
+                incremental || !hashedAssets ? previousManifest : GenerationManifest.load(htmlTargetDir);
+        final GenerationManifest manifest = GenerationManifest.empty();
+        final PrecompressedFiles precompressedFiles =
+                new PrecompressedFiles(htmlTargetDir, compressionLevel, previousManifest, manifest);
+        if (incremental) {
+            System.out.println("Updating: " + htmlSourceDir.toAbsolutePath() + " -> " + htmlTargetDir.toAbsolutePath());
+            Files.createDirectories(htmlTargetDir);
+        } else {
+            System.out.println("Deleting: " + htmlTargetDir.toAbsolutePath());
+            if (!deleteRecursively(htmlTargetDir.toFile(),
+                    hashedAssets ? htmlTargetDir.resolve(AssetStore.DIRECTORY_NAME).toFile() : null)) {
+                throw new RuntimeException("Failed to delete directory " + htmlTargetDir);
+            }
+            System.out.println("Copying: " + htmlSourceDir.toAbsolutePath() + " -> " + htmlTargetDir.toAbsolutePath());
+            Files.createDirectories(htmlTargetDir);
+        }
+        publishTemplateFiles(htmlSourceDir, htmlTargetDir, Set.of(INDEX_FILE), precompressedFiles);
+        final @Nullable ImageDerivatives imageDerivatives = derivativeWidths.length == 0 ? null :
+                new ImageDerivatives(htmlTargetDir, derivativeWidths, derivativeEncoders, previousManifest, manifest);
+        if (imageDerivatives != null) {
+            imageDerivatives.update(days);
         }
-        System.out.println("Copying: " + htmlSourceDir.toAbsolutePath() + " -> " + htmlTargetDir.toAbsolutePath());
-        createSymlinksToFolderChildren(htmlSourceDir, htmlTargetDir, Set.of(INDEX_FILE));
-        final List<String> templateLines = readLines(htmlSourceDir.resolve(INDEX_FILE));
+        final @Nullable AssetStore assetStore =
+                hashedAssets ? new AssetStore(htmlTargetDir, previousAssetManifest, manifest, precompressedFiles) :
+                        null;
+        final List<String> templateLines;
+        if (assetStore == null) {
+            templateLines = readLines(htmlSourceDir.resolve(INDEX_FILE));
+        } else {
+            templateLines = AssetStore.rewriteTemplate(readLines(htmlSourceDir.resolve(INDEX_FILE)),
+                    assetStore.publishTemplateFiles(htmlSourceDir, Set.of(INDEX_FILE)));
+            assetStore.publishDays(days);
+        }
+        final @Nullable ThumbnailAtlases thumbnailAtlases = thumbnailAtlasEncoder == null ? null :
+                new ThumbnailAtlases(htmlTargetDir, thumbnailAtlasEncoder, previousManifest, manifest);
+        final PageWriter pageWriter =
+                new PageWriter(templateLines, previousManifest, manifest, precompressedFiles, thumbnailAtlases,
+                        imageDerivatives, assetStore);
         final List<Map.Entry<String, List<ImageDay>>> daysByMonthReversed = rabbitDiary.getDaysByMonthReversed();
         final List<String> months = daysByMonthReversed.stream().map(Map.Entry::getKey).collect(Collectors.toList());
         System.out.println("Months: " + String.join(", ", months));
         months.stream().parallel().forEach(month -> {
             final Path monthDir = htmlTargetDir.resolve(month);
-            if (!monthDir.toFile().mkdir()) {
-                System.err.println("Failed to create directory " + monthDir);
-                return;
-            }
             try {
-                Files.write(monthDir.resolve(INDEX_FILE), getIndexPage(templateLines, month),
-                        StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                Files.createDirectories(monthDir);
+                pageWriter.write(monthDir.resolve(INDEX_FILE), month);
             } catch (final IOException e) {
                 System.err.println("Failed to create index file for month " + month + " in directory " + monthDir);
                 e.printStackTrace();
             }
         });
-        final File mainIndexFile = htmlTargetDir.resolve(INDEX_FILE).toFile();
-        if (mainIndexFile.exists() && !mainIndexFile.delete()) {
-            throw new RuntimeException(
-                    "Failed to ensure that file " + mainIndexFile + " does not exist before creating it!");
+        pageWriter.write(htmlTargetDir.resolve(INDEX_FILE), null);
+        if (incremental) {
+            deleteRemovedMonths(new HashSet<>(months));
         }
-        Files.write(mainIndexFile.toPath(), getIndexPage(templateLines, null),
-                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
 
         // Create a symbolic link to the rabbit diary
-        Files.createSymbolicLink(htmlTargetDir.resolve(RABBIT_IMAGE_DIR_NAME), rabbitDiaryDir);
-    }
-
-    public void createSymlinksToFolderChildren(final Path source, final Path target,
-                                               final Set<String> excluded) throws IOException {
-        if (!target.toFile().mkdirs()) {
-            throw new RuntimeException("Failed to create directory " + target);
+        replaceWithSymlink(htmlTargetDir.resolve(RabbitPages.RABBIT_IMAGE_DIR_NAME), rabbitDiaryDir);
+        final long compressionStartedAt = System.currentTimeMillis();
+        precompressedFiles.compressAll();
+        if (assetStore != null) {
+            assetStore.deleteUnusedFiles();
         }
-        final File @Nullable [] sourceChildren = source.toFile().listFiles();
-        if (sourceChildren == null) {
-            System.err.println("The source directory " + source + " contains no files");
-            return;
+        manifest.save(htmlTargetDir);
+        System.out.printf("Pages written: %d, unchanged: %d%n", pageWriter.writtenCount.get(),
+                pageWriter.skippedCount.get());
+        if (thumbnailAtlases != null) {
+            System.out.printf("Thumbnail atlases written: %d, unchanged: %d%n", thumbnailAtlases.writtenCount.get(),
+                    thumbnailAtlases.skippedCount.get());
         }
-        for (final File child : sourceChildren) {
-            if (child.getName().endsWith("~") || excluded.contains(child.getName())) {
-                continue;
-            }
-            Files.createSymbolicLink(target.resolve(child.getName()), child.toPath());
+        if (imageDerivatives != null) {
+            System.out.printf("Image derivatives written: %d, unchanged: %d%n", imageDerivatives.writtenCount.get(),
+                    imageDerivatives.skippedCount.get());
         }
-    }
-
-    private static boolean deleteRecursively(final File file) {
-        final File @Nullable [] allContents = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
-        if (allContents != null) {
-            Arrays.stream(allContents).parallel().forEach(RabbitGenerator::deleteRecursively);
+        if (assetStore != null) {
+            System.out.printf("Hashed assets: %d, hashed: %d, written: %d%n", assetStore.publishedCount.get(),
+                    assetStore.hashedCount.get(), assetStore.writtenCount.get());
         }
-        return !file.exists() || file.delete();
-    }
-
-    private static String readTextFile(final File file) throws IOException {
-        return Files.readString(file.toPath());
+        System.out.printf("Files compressed: %d, unchanged: %d (%d ms)%n", precompressedFiles.compressedCount.get(),
+                precompressedFiles.skippedCount.get(), System.currentTimeMillis() - compressionStartedAt);
     }
 
-    private static BufferedImage readPngImage(final File file) throws IOException {
-        return ImageIO.read(file);
-    }
-
-    private static List<String> readLines(final Path file) throws IOException {
-        try (final Stream<String> lineStream = Files.lines(file)) {
-            return lineStream.collect(Collectors.toList());
+    private void createThumbnailFiles(final List<ImageDay> days) {
+        final long startedAt = System.currentTimeMillis();
+        final int progressStep = Math.max(1, days.size() / 10);
+        final int failedCount;
+        try (final ThumbnailPipeline pipeline = new ThumbnailPipeline(thumbnailThreadCount, thumbnailThreadCount * 2)) {
+            failedCount = pipeline.createThumbnailFiles(days, (doneCount, totalCount) -> {
+                if (doneCount % progressStep == 0 || doneCount == totalCount) {
+                    System.out.printf("Thumbnails: %d/%d%n", doneCount, totalCount);
+                }
+            });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while creating the thumbnails", e);
         }
+        System.out.printf("Created the thumbnails of %d days in %d ms with %d threads (%d failed)%n", days.size(),
+                System.currentTimeMillis() - startedAt, thumbnailThreadCount, failedCount);
     }
 
+    private class PageWriter {
 
-    private static final String RABBIT_DAY_MARKER = "<!--RABBIT DAY-->";
+        private final RabbitPages pages;
 
-    private List<String> getIndexPage(final List<String> templateLines, final @Nullable String month) {
-        // TODO: Add behaviour depending on whether caching is enabled
-        final List<Map.Entry<String, List<ImageDay>>> daysByMonth = rabbitDiary.getDaysByMonthReversed();
-        final int monthIndex = month == null ? Math.min(daysByMonth.size() - 1, 0) : getMonthIndex(daysByMonth, month);
-        final List<ImageDay> rabbitDays = monthIndex < 0 ? Collections.emptyList() :
-                daysByMonth.get(monthIndex).getValue();
-        final int futureMonthIndex = monthIndex < 0 ? getGreaterMonthIndex(daysByMonth, month) : monthIndex - 1;
-        final String pathToRootPage = month == null ? "." : "..";
-        final Map<String, String> replacements =
-                getHtmlTemplateValues(monthIndex, futureMonthIndex, daysByMonth, pathToRootPage);
+        private final GenerationManifest previousManifest;
 
-        return templateLines.stream()
-                .map(new RabbitTemplateLineMapper(rabbitDays, replacements, pathToRootPage))
-                .collect(Collectors.toList());
-    }
+        private final GenerationManifest manifest;
 
-    @RequiredArgsConstructor
-    private static class RabbitTemplateLineMapper implements Function<String, String> {
+        private final PrecompressedFiles precompressedFiles;
 
-        private boolean isInRabbitDayTemplate = false;
+        private final @Nullable ThumbnailAtlases thumbnailAtlases;
 
-        private final StringBuilder rabbitDayTemplate = new StringBuilder();
+        private final @Nullable ImageDerivatives imageDerivatives;
 
-        private final List<ImageDay> rabbitDays;
+        private final @Nullable AssetStore assetStore;
 
-        private final Map<String, String> replacements;
+        private final AtomicInteger writtenCount = new AtomicInteger();
 
-        private final String pathToRootPage;
+        private final AtomicInteger skippedCount = new AtomicInteger();
 
-        @Override
-        public String apply(String line) {
+        PageWriter(final List<String> templateLines, final GenerationManifest previousManifest,
+                   final GenerationManifest manifest, final PrecompressedFiles precompressedFiles,
+                   final @Nullable ThumbnailAtlases thumbnailAtlases,
+                   final @Nullable ImageDerivatives imageDerivatives, final @Nullable AssetStore assetStore) {
+            pages = new RabbitPages(rabbitDiary, templateLines);
+            this.previousManifest = previousManifest;
+            this.manifest = manifest;
+            this.precompressedFiles = precompressedFiles;
+            this.thumbnailAtlases = thumbnailAtlases;
+            this.imageDerivatives = imageDerivatives;
+            this.assetStore = assetStore;
+        }
 
-            boolean hasJustFinishedConstructingTemplate = false;
-            if (line.endsWith(RABBIT_DAY_MARKER)) {
-                isInRabbitDayTemplate = !isInRabbitDayTemplate;
-                if (isInRabbitDayTemplate) {
-                    return "";
-                }
-                hasJustFinishedConstructingTemplate = true;
+        /**
+         * Writes the page of the month, replacing the existing one only once it has been fully written, unless the
+         * inputs of the page are the same as the last time it was written.
+         */
+        void write(final Path file, final @Nullable String month) throws IOException {
+            final RabbitPages.IndexPage page =
+                    withAssetStore(withImageDerivatives(withThumbnailAtlas(pages.getIndexPage(month))));
+            final String pageName = htmlTargetDir.relativize(file).toString();
+            final String signature = page.getSignature();
+            precompressedFiles.add(file);
+            if (signature.equals(previousManifest.getSignature(pageName)) && file.toFile().isFile()) {
+                manifest.putSignature(pageName, signature);
+                skippedCount.incrementAndGet();
+                return;
+            }
+            final Path tmpFile = file.resolveSibling("." + file.getFileName() + ".tmp");
+            final long startedAt = metrics.startTimer();
+            try (final Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                page.render(writer);
             }
-            if (isInRabbitDayTemplate) {
-                rabbitDayTemplate.append(line).append('\n');
-                return "";
+            metrics.stopTimer(DiaryOperation.RENDER_PAGE, startedAt);
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Recorded only now so that a page which has failed to be written is written again by the next run
+            manifest.putSignature(pageName, signature);
+            writtenCount.incrementAndGet();
+        }
+
+        private RabbitPages.IndexPage withThumbnailAtlas(final RabbitPages.IndexPage page) throws IOException {
+            final @Nullable String month = page.getMonth();
+            if (thumbnailAtlases == null || month == null || !page.hasDays()) {
+                return page;
             }
-            if (!hasJustFinishedConstructingTemplate) {
-                for (final Map.Entry<String, String> replacement : replacements.entrySet()) {
-                    line = line.replace(replacement.getKey(), replacement.getValue());
+            return page.withThumbnailAtlas(thumbnailAtlases.update(month, page.getDays()));
+        }
+
+        private RabbitPages.IndexPage withImageDerivatives(final RabbitPages.IndexPage page) {
+            return imageDerivatives == null ? page : page.withImageDerivatives(imageDerivatives);
+        }
+
+        private RabbitPages.IndexPage withAssetStore(final RabbitPages.IndexPage page) {
+            return assetStore == null ? page : page.withAssetStore(assetStore);
+        }
+    }
+
+    private void deleteRemovedMonths(final Set<String> months) {
+        final File @Nullable [] monthDirs = htmlTargetDir.toFile()
+                .listFiles(file -> file.isDirectory() && MONTH_DIRECTORY_PATTERN.matcher(file.getName()).matches());
+        if (monthDirs == null) {
+            return;
+        }
+        for (final File monthDir : monthDirs) {
+            if (!months.contains(monthDir.getName())) {
+                System.out.println("Deleting removed month: " + monthDir);
+                if (!deleteRecursively(monthDir)) {
+                    System.err.println("Failed to delete directory " + monthDir);
                 }
-                return line;
             }
-            final String template = rabbitDayTemplate.toString();
-            return rabbitDays.parallelStream()
-                    .map(day -> applyDayToTemplate(day, template, pathToRootPage))
-                    .collect(Collectors.joining("\n"));
         }
     }
 
-    private static String applyDayToTemplate(final ImageDay day, final String template, final String pathToRootPage) {
-        final int imageMask = day.getImageMask();
-        final String dayUrl = pathToRootPage + "/" + RABBIT_IMAGE_DIR_NAME + "/" + day.getDate();
-        final List<String> links = new ArrayList<>(24);
-        for (int hour = 0; hour < 24; hour++) {
-            final String event = day.getEvent(hour);
-            final List<String> content = new ArrayList<>();
-            if (event != null) {
-                final String eventUrl = MessageFormat.format("{0}/event-{1}-{2}.txt", dayUrl, day.getDate(), hour);
-                content.add(String.format("""
-                        <a href="%s" class="event-link" title="%s">Note</a>
-                        """.trim(), eventUrl, event.replace("\"", "&quot;")));
+    /**
+     * Publishes the children of the source directory in the target directory. The files which are worth compressing
+     * are copied so that their compressed copies can be next to them, and the rest are linked to.
+     */
+    private static void publishTemplateFiles(final Path source, final Path target, final Set<String> excluded,
+                                             final PrecompressedFiles precompressedFiles) throws IOException {
+        final File @Nullable [] sourceChildren = source.toFile().listFiles();
+        if (sourceChildren == null) {
+            System.err.println("The source directory " + source + " contains no files");
+            return;
+        }
+        for (final File child : sourceChildren) {
+            if (child.getName().endsWith("~") || excluded.contains(child.getName())) {
+                continue;
             }
-            if (((imageMask >> hour) & 1) != 0) {
-                final String imageUrl = MessageFormat.format("{0}/rabbit-{1}-{2}.png", dayUrl, day.getDate(), hour);
-                final String imageLink = String.format("<a href=\"%s\"></a>", imageUrl);
-                // A hack for making sure that the Note link is centered between two image links because links aren't
-                // allowed to be inside links for whatever reason.
-                if (!content.isEmpty()) {
-                    content.add(0, imageLink);
+            final Path targetChild = target.resolve(child.getName());
+            if (child.isDirectory()) {
+                if (Files.isSymbolicLink(targetChild)) {
+                    Files.delete(targetChild);
                 }
-                content.add(imageLink);
+                Files.createDirectories(targetChild);
+                publishTemplateFiles(child.toPath(), targetChild, Set.of(), precompressedFiles);
+            } else if (PrecompressedFiles.isCompressible(targetChild)) {
+                copyIfChanged(child.toPath(), targetChild);
+                precompressedFiles.add(targetChild);
+            } else {
+                replaceWithSymlink(targetChild, child.toPath());
             }
-            links.add(String.format("<div%s>%s</div>", content.isEmpty() ? " class=\"inactive\"" : "",
-                    String.join("", content)));
         }
-        return template.replace("[NAME]", day.getDate())
-                .replace("[THUMBNAIL_URL]", dayUrl + "/thumbnail.png")
-                .replace("[LINKS]", String.join("", links));
     }
 
-    private static String getMonthDisplayName(final @NonNull String month) {
-        final String[] parts = month.split("-");
-        final int monthIndex = Integer.parseInt(parts[1]) - 1;
-        final String monthName;
-        if (monthIndex < 0 || monthIndex >= 12) {
-            monthName = "???";
-        } else {
-            final Calendar c = Calendar.getInstance();
-            c.set(Calendar.MONTH, monthIndex);
-            c.set(Calendar.DAY_OF_MONTH, 1);
-            monthName = c.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.US);
+    /**
+     * Makes the target a copy of the source without there being a moment in which it is incomplete.
+     */
+    private static void copyIfChanged(final Path source, final Path target) throws IOException {
+        if (Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS) && Files.mismatch(source, target) == -1L) {
+            return;
         }
-        return monthName + " " + parts[0];
+        final Path tmpFile = target.resolveSibling("." + target.getFileName() + ".tmp");
+        Files.copy(source, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private static <T> int getMonthIndex(final List<Map.Entry<String, T>> monthGroupList, final String month) {
-        for (int i = 0; i < monthGroupList.size(); i++) {
-            if (monthGroupList.get(i).getKey().equals(month)) {
-                return i;
-            }
+    /**
+     * Makes the link point to the target without there being a moment in which the link does not exist.
+     */
+    private static void replaceWithSymlink(final Path link, final Path target) throws IOException {
+        if (Files.isSymbolicLink(link) && Files.readSymbolicLink(link).equals(target)) {
+            return;
+        }
+        if (link.toFile().exists() && !Files.isSymbolicLink(link) && !deleteRecursively(link.toFile())) {
+            throw new RuntimeException("Failed to delete " + link + " in order to replace it with a link");
         }
-        return -1;
+        final Path tmpLink = link.resolveSibling("." + link.getFileName() + ".tmp");
+        Files.deleteIfExists(tmpLink);
+        Files.createSymbolicLink(tmpLink, target);
+        Files.move(tmpLink, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private static <T> int getGreaterMonthIndex(final List<Map.Entry<String, T>> monthGroupList, final String month) {
-        for (int i = monthGroupList.size() - 1; i >= 0; i--) {
-            if (monthGroupList.get(i).getKey().compareTo(month) > 0) {
-                return i;
-            }
+    private static boolean deleteRecursively(final File file) {
+        return deleteRecursively(file, null);
+    }
+
+    /**
+     * @param kept A file or directory inside the deleted one which is kept along with the directories above it.
+     * @return Whether everything but the kept file has been deleted.
+     */
+    private static boolean deleteRecursively(final File file, final @Nullable File kept) {
+        if (file.equals(kept)) {
+            return true;
         }
-        return -1;
+        final File @Nullable [] allContents = Files.isSymbolicLink(file.toPath()) ? null : file.listFiles();
+        if (allContents != null) {
+            Arrays.stream(allContents).parallel().forEach(child -> deleteRecursively(child, kept));
+        }
+        return !file.exists() || file.delete() || kept != null && kept.toPath().startsWith(file.toPath());
+    }
+
+    static String readTextFile(final File file) throws IOException {
+        return Files.readString(file.toPath());
+    }
+
+    static BufferedImage readPngImage(final File file) throws IOException {
+        return ImageIO.read(file);
     }
 
-    private static Map<String, String> getHtmlTemplateValues(final int monthIndex, final int futureMonthIndex,
-                                                             final List<Map.Entry<String, List<ImageDay>>> daysByMonth,
-                                                             final String pathToRootPage) {
-
-        final Map<String, String> result = new HashMap<>();
-        result.put("[PATH_TO_RABBIT_ROOT]", pathToRootPage);
-
-        result.put("[NEXT_MONTH_NAME]", futureMonthIndex < 0 ? "No newer rabbits" :
-                getMonthDisplayName(daysByMonth.get(futureMonthIndex).getKey()));
-        result.put("[CURRENT_MONTH_NAME]", monthIndex < 0 ? "No rabbits" :
-                getMonthDisplayName(daysByMonth.get(monthIndex).getKey()));
-        final int pastMonthIndex = monthIndex < 0 ? futureMonthIndex + 1 : monthIndex + 1;
-        result.put("[PREVIOUS_MONTH_NAME]", pastMonthIndex >= daysByMonth.size() ? "No older rabbits" :
-                getMonthDisplayName(daysByMonth.get(pastMonthIndex).getKey()));
-
-        final int pastRabbitCount =
-                daysByMonth.subList(pastMonthIndex, daysByMonth.size())
-                        .parallelStream()
-                        .mapToInt(a -> a.getValue().parallelStream().mapToInt(ImageDay::getImageCount).sum())
-                        .sum();
-        result.put("[PREVIOUS_RABBITS_COUNT]", String.valueOf(pastRabbitCount));
-        final int currentRabbitCount = monthIndex < 0 ? 0 :
-                daysByMonth.get(monthIndex).getValue().parallelStream().mapToInt(ImageDay::getImageCount).sum();
-        result.put("[CURRENT_RABBITS_COUNT]", String.valueOf(currentRabbitCount));
-        final int futureRabbitCount =
-                daysByMonth.subList(0, futureMonthIndex + 1)
-                        .parallelStream()
-                        .mapToInt(a -> a.getValue().parallelStream().mapToInt(ImageDay::getImageCount).sum())
-                        .sum();
-        result.put("[NEXT_RABBITS_COUNT]", String.valueOf(futureRabbitCount));
-        result.put("PREVIOUS_RABBITS_TAG", pastRabbitCount == 0 ? "span" : "a");
-        result.put("NEXT_RABBITS_TAG", futureRabbitCount == 0 ? "span" : "a");
-
-        result.put("[PREVIOUS_RABBITS_MONTH]", pastMonthIndex >= daysByMonth.size() ? pathToRootPage :
-                pathToRootPage + "/" + daysByMonth.get(pastMonthIndex).getKey() + "/");
-        result.put("[NEXT_RABBITS_MONTH]", futureMonthIndex <= 0 ? pathToRootPage :
-                pathToRootPage + "/" + daysByMonth.get(futureMonthIndex).getKey() + "/");
-
-        return result;
+    static List<String> readLines(final Path file) throws IOException {
+        try (final Stream<String> lineStream = Files.lines(file)) {
+            return lineStream.collect(Collectors.toList());
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,257 @@
+package moe.mewore.web.rabbit.generator;
+
+import lombok.RequiredArgsConstructor;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.ImageDiary;
+import moe.mewore.imagediary.MonthIndex;
+import moe.mewore.web.rabbit.generator.RabbitTemplate.DayFileUrls;
+import moe.mewore.web.rabbit.generator.RabbitTemplate.ImageLinkAttributes;
+import moe.mewore.web.rabbit.generator.RabbitTemplate.Placeholder;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The pages of a rabbit diary: the root page, which shows the newest month, and a page for every month. They are
+ * used both for generating the pages as files and for serving them.
+ */
+class RabbitPages {
+
+    static final String RABBIT_IMAGE_DIR_NAME = "rabbit-drawings";
+
+    private final ImageDiary rabbitDiary;
+
+    private final RabbitTemplate template;
+
+    private final String templateSignature;
+
+    RabbitPages(final ImageDiary rabbitDiary, final List<String> templateLines) {
+        this.rabbitDiary = rabbitDiary;
+        template = RabbitTemplate.compile(templateLines);
+        templateSignature = getSignature(templateLines);
+    }
+
+    /**
+     * @param month The month of the page, or null for the root page.
+     */
+    IndexPage getIndexPage(final @Nullable String month) {
+        // TODO: Add behaviour depending on whether caching is enabled
+        final List<Map.Entry<String, List<ImageDay>>> daysByMonth = rabbitDiary.getDaysByMonthReversed();
+        final @Nullable String newestMonth = daysByMonth.isEmpty() ? null : daysByMonth.get(0).getKey();
+        final @Nullable String pageMonth = month == null ? newestMonth : month;
+        final List<ImageDay> rabbitDays =
+                pageMonth == null ? Collections.emptyList() : rabbitDiary.getDaysInMonthReversed(pageMonth);
+        final MonthLinks links = pageMonth == null ? new MonthLinks(null, null, null, null) :
+                new MonthLinks(rabbitDiary.getPreviousMonth(pageMonth), rabbitDays.isEmpty() ? null : pageMonth,
+                        rabbitDiary.getNextMonth(pageMonth), newestMonth);
+        final String pathToRootPage = month == null ? "." : "..";
+        final Map<Placeholder, String> replacements =
+                getHtmlTemplateValues(links, rabbitDiary.getMonthIndex(), pageMonth, pathToRootPage);
+        return new IndexPage(pageMonth, rabbitDays, replacements, pathToRootPage, null, ImageLinkAttributes.NONE,
+                DayFileUrls.NONE);
+    }
+
+    @RequiredArgsConstructor
+    class IndexPage {
+
+        /**
+         * The month whose days are on the page, or null if there are no months.
+         */
+        private final @Nullable String month;
+
+        private final List<ImageDay> rabbitDays;
+
+        private final Map<Placeholder, String> replacements;
+
+        private final String pathToRootPage;
+
+        private final @Nullable String thumbnailAtlasUrl;
+
+        private final ImageLinkAttributes imageLinkAttributes;
+
+        private final DayFileUrls dayFileUrls;
+
+        @Nullable String getMonth() {
+            return month;
+        }
+
+        List<ImageDay> getDays() {
+            return rabbitDays;
+        }
+
+        /**
+         * @param url The URL of the thumbnail atlas of the month relative to the directory of the month.
+         * @return The same page, with its days showing their thumbnails from the thumbnail atlas of its month.
+         */
+        IndexPage withThumbnailAtlas(final String url) {
+            final String pageUrl = month == null || pathToRootPage.equals("..") ? url : month + "/" + url;
+            return new IndexPage(month, rabbitDays, replacements, pathToRootPage, pageUrl, imageLinkAttributes,
+                    dayFileUrls);
+        }
+
+        /**
+         * @return The same page, with the links to its images listing the smaller versions of the images.
+         */
+        IndexPage withImageDerivatives(final ImageDerivatives derivatives) {
+            return new IndexPage(month, rabbitDays, replacements, pathToRootPage, thumbnailAtlasUrl,
+                    (date, hour) -> derivatives.getLinkAttributes(pathToRootPage, date, hour), dayFileUrls);
+        }
+
+        /**
+         * @return The same page, linking to the thumbnails and the images which have been published into the store.
+         */
+        IndexPage withAssetStore(final AssetStore assetStore) {
+            final String storeUrl = pathToRootPage + "/" + AssetStore.DIRECTORY_NAME + "/";
+            return new IndexPage(month, rabbitDays, replacements, pathToRootPage, thumbnailAtlasUrl,
+                    imageLinkAttributes, new DayFileUrls() {
+                @Override
+                public @Nullable String getThumbnailUrl(final String date) {
+                    final @Nullable String name = assetStore.getThumbnailName(date);
+                    return name == null ? null : storeUrl + name;
+                }
+
+                @Override
+                public @Nullable String getImageUrl(final String date, final int hour) {
+                    final @Nullable String name = assetStore.getImageName(date, hour);
+                    return name == null ? null : storeUrl + name;
+                }
+            });
+        }
+
+        /**
+         * @return Whether the page has any rabbit days.
+         */
+        boolean hasDays() {
+            return !rabbitDays.isEmpty();
+        }
+
+        void render(final Writer writer) throws IOException {
+            template.render(writer, replacements, rabbitDays, pathToRootPage + "/" + RABBIT_IMAGE_DIR_NAME + "/",
+                    thumbnailAtlasUrl, imageLinkAttributes, dayFileUrls);
+        }
+
+        /**
+         * @return A hash of everything that the content of the page depends on, including the template.
+         */
+        String getSignature() {
+            final MessageDigest digest = GenerationManifest.createDigest();
+            update(digest, templateSignature);
+            update(digest, pathToRootPage);
+            update(digest, thumbnailAtlasUrl == null ? "" : thumbnailAtlasUrl);
+            for (final Map.Entry<Placeholder, String> replacement : replacements.entrySet()) {
+                update(digest, replacement.getKey().name());
+                update(digest, replacement.getValue());
+            }
+            for (final ImageDay day : rabbitDays) {
+                update(digest, day.getDate());
+                update(digest, day.getThumbnailFileName());
+                final @Nullable String thumbnailUrl = dayFileUrls.getThumbnailUrl(day.getDate());
+                if (thumbnailUrl != null) {
+                    update(digest, thumbnailUrl);
+                }
+                update(digest, String.valueOf(day.getImageMask()));
+                for (int hour = 0; hour < 24; hour++) {
+                    final String attributes = ((day.getImageMask() >> hour) & 1) == 0 ? "" :
+                            imageLinkAttributes.get(day.getDate(), hour);
+                    if (!attributes.isEmpty()) {
+                        update(digest, hour + ":" + attributes);
+                    }
+                    final @Nullable String imageUrl = ((day.getImageMask() >> hour) & 1) == 0 ? null :
+                            dayFileUrls.getImageUrl(day.getDate(), hour);
+                    if (imageUrl != null) {
+                        update(digest, hour + ":" + imageUrl);
+                    }
+                }
+                for (int hour = 0; hour < 24; hour++) {
+                    final @Nullable String event = day.getEvent(hour);
+                    update(digest, event == null ? "" : hour + ":" + event);
+                }
+            }
+            return GenerationManifest.toHex(digest.digest());
+        }
+    }
+
+    private static String getSignature(final List<String> lines) {
+        final MessageDigest digest = GenerationManifest.createDigest();
+        lines.forEach(line -> update(digest, line));
+        return GenerationManifest.toHex(digest.digest());
+    }
+
+    static void update(final MessageDigest digest, final String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String getMonthDisplayName(final @NonNull String month) {
+        final String[] parts = month.split("-");
+        final int monthIndex = Integer.parseInt(parts[1]) - 1;
+        final String monthName;
+        if (monthIndex < 0 || monthIndex >= 12) {
+            monthName = "???";
+        } else {
+            final Calendar c = Calendar.getInstance();
+            c.set(Calendar.MONTH, monthIndex);
+            c.set(Calendar.DAY_OF_MONTH, 1);
+            monthName = c.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.US);
+        }
+        return monthName + " " + parts[0];
+    }
+
+    /**
+     * The months with rabbits around the month of a page, any of which may not exist.
+     */
+    @RequiredArgsConstructor
+    private static class MonthLinks {
+
+        private final @Nullable String previousMonth;
+
+        private final @Nullable String currentMonth;
+
+        private final @Nullable String nextMonth;
+
+        private final @Nullable String newestMonth;
+    }
+
+    private static Map<Placeholder, String> getHtmlTemplateValues(
+            final MonthLinks links, final MonthIndex imageCounts, final @Nullable String countedMonth,
+            final String pathToRootPage) {
+
+        final Map<Placeholder, String> result = new EnumMap<>(Placeholder.class);
+        result.put(Placeholder.PATH_TO_RABBIT_ROOT, pathToRootPage);
+
+        result.put(Placeholder.NEXT_MONTH_NAME, links.nextMonth == null ? "No newer rabbits" :
+                getMonthDisplayName(links.nextMonth));
+        result.put(Placeholder.CURRENT_MONTH_NAME, links.currentMonth == null ? "No rabbits" :
+                getMonthDisplayName(links.currentMonth));
+        result.put(Placeholder.PREVIOUS_MONTH_NAME, links.previousMonth == null ? "No older rabbits" :
+                getMonthDisplayName(links.previousMonth));
+
+        final int pastRabbitCount = countedMonth == null ? 0 : imageCounts.getImageCountBefore(countedMonth);
+        result.put(Placeholder.PREVIOUS_RABBITS_COUNT, String.valueOf(pastRabbitCount));
+        final int currentRabbitCount = countedMonth == null ? 0 : imageCounts.getImageCount(countedMonth);
+        result.put(Placeholder.CURRENT_RABBITS_COUNT, String.valueOf(currentRabbitCount));
+        final int futureRabbitCount = countedMonth == null ? 0 : imageCounts.getImageCountAfter(countedMonth);
+        result.put(Placeholder.NEXT_RABBITS_COUNT, String.valueOf(futureRabbitCount));
+        result.put(Placeholder.PREVIOUS_RABBITS_TAG, pastRabbitCount == 0 ? "span" : "a");
+        result.put(Placeholder.NEXT_RABBITS_TAG, futureRabbitCount == 0 ? "span" : "a");
+
+        result.put(Placeholder.PREVIOUS_RABBITS_MONTH, links.previousMonth == null ? pathToRootPage :
+                pathToRootPage + "/" + links.previousMonth + "/");
+        // The newest month is the root page itself
+        result.put(Placeholder.NEXT_RABBITS_MONTH,
+                links.nextMonth == null || links.nextMonth.equals(links.newestMonth) ? pathToRootPage :
+                        pathToRootPage + "/" + links.nextMonth + "/");
+
+        return result;
+    }
+}
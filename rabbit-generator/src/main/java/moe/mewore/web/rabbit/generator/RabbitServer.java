@@ -0,0 +1,623 @@
+package moe.mewore.web.rabbit.generator;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.RequiredArgsConstructor;
+import moe.mewore.imagediary.AsyncImageDiary;
+import moe.mewore.imagediary.DiaryFile;
+import moe.mewore.imagediary.ImageDataMode;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.ImageDayCache;
+import moe.mewore.imagediary.ImageDiary;
+import moe.mewore.imagediary.LocalImageDiary;
+import moe.mewore.imagediary.LocalImageDiaryOptions;
+import moe.mewore.imagediary.RefreshMode;
+import moe.mewore.imagediary.ThumbnailEncoder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Serves the pages of a rabbit diary straight from the diary, along with its images, notes and thumbnails, instead of
+ * generating them as files. Every response has a strong ETag, so clients can revalidate what they have cached and get
+ * a "304 Not Modified" if it is still current. The pages are kept rendered and compressed until they change.
+ */
+public class RabbitServer implements Closeable {
+    private static final int ARG_COUNT = 2;
+
+    private static final String[] ARG_DESCRIPTIONS = {
+            "Rabbit diary directory (directory with YYYY-MM-DD directories, each containing rabbit images)",
+            "Source directory of the template HTML and other files",
+    };
+
+    private static final String PORT_OPTION = "--port=";
+
+    /**
+     * Sets the number of threads which handle requests. By default, it is twice the number of available processors.
+     */
+    private static final String THREADS_OPTION = "--threads=";
+
+    /**
+     * Sets the number of seconds between the end of a refresh of the diary and the start of the next one.
+     */
+    private static final String REFRESH_PERIOD_OPTION = "--refresh-period=";
+
+    /**
+     * Sets the format of the thumbnails, like the option of {@link RabbitGenerator} does.
+     */
+    private static final String THUMBNAIL_FORMAT_OPTION = "--thumbnail-format=";
+
+    private static final int DEFAULT_PORT = 8080;
+
+    private static final long DEFAULT_REFRESH_PERIOD_SECONDS = 10L;
+
+    /**
+     * The pages change whenever a rabbit is drawn, so they are always revalidated.
+     */
+    private static final String PAGE_CACHE_CONTROL = "no-cache";
+
+    /**
+     * The files change rarely, but a thumbnail changes along with its day, so they are revalidated after a while.
+     */
+    private static final String FILE_CACHE_CONTROL = "public, max-age=300";
+
+    private static final Pattern MONTH_PATH_PATTERN = Pattern.compile("^/(\\d{4}-\\d{2})(/|/index\\.html)?$");
+
+    private static final Pattern DIARY_FILE_PATH_PATTERN =
+            Pattern.compile("^/" + RabbitPages.RABBIT_IMAGE_DIR_NAME + "/(\\d{4}-\\d{2}-\\d{2})/([^/]+)$");
+
+    private static final Pattern IMAGE_NAME_PATTERN = Pattern.compile("^.+-(\\d{4}-\\d{2}-\\d{2})-(\\d\\d?)\\.png$");
+
+    private static final Pattern EVENT_NAME_PATTERN = Pattern.compile("^event-(\\d{4}-\\d{2}-\\d{2})-(\\d\\d?)\\.txt$");
+
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            "html", "text/html; charset=utf-8",
+            "css", "text/css; charset=utf-8",
+            "js", "text/javascript; charset=utf-8",
+            "txt", "text/plain; charset=utf-8",
+            "png", "image/png",
+            "jpg", "image/jpeg",
+            "ico", "image/x-icon",
+            "svg", "image/svg+xml");
+
+    static {
+        // The headers and the body of a response are written separately, so with Nagle's algorithm the body waits for
+        // the client to acknowledge the headers, which it delays by up to 40 ms
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final ImageDiary rabbitDiary;
+
+    private final RabbitPages pages;
+
+    private final Path htmlSourceDir;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /**
+     * The latest rendering of every page, by the month of the page or an empty string for the root page.
+     */
+    private final Map<String, RenderedPage> renderedPages = new ConcurrentHashMap<>();
+
+    /**
+     * The tag of the latest thumbnail of every day. The thumbnail data itself is not kept here so that the diary can
+     * still release it.
+     */
+    private final Map<String, ContentTag> thumbnailTags = new ConcurrentHashMap<>();
+
+    public RabbitServer(final ImageDiary rabbitDiary, final Path htmlSourceDir, final InetSocketAddress address,
+                        final int threadCount) throws IOException {
+        this.rabbitDiary = rabbitDiary;
+        this.htmlSourceDir = htmlSourceDir;
+        pages = new RabbitPages(rabbitDiary, RabbitGenerator.readLines(htmlSourceDir.resolve(
+                RabbitGenerator.INDEX_FILE)));
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threadCount,
+                runnable -> new Thread(runnable, "rabbit-server-" + threadNumber.incrementAndGet()));
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public static void main(final String[] args) throws IllegalArgumentException, IOException {
+        if (args.length < ARG_COUNT) {
+            final List<String> argDescLines = new ArrayList<>(ARG_DESCRIPTIONS.length);
+            for (int index = 0; index < ARG_DESCRIPTIONS.length; index++) {
+                argDescLines.add(String.format("\t%d) %s", index + 1, ARG_DESCRIPTIONS[index]));
+            }
+            throw new IllegalArgumentException("The number of arguments should be at least " + ARG_COUNT + ":\n" +
+                                               String.join("\n", argDescLines));
+        }
+
+        final File diaryDir = new File(args[0]);
+        if (!diaryDir.isDirectory()) {
+            throw new IllegalArgumentException("The rabbit diary directory is not a directory: " +
+                                               diaryDir.getAbsolutePath());
+        }
+        final Path htmlSourceDir = Path.of(args[1]).toAbsolutePath().normalize();
+        if (!htmlSourceDir.resolve(RabbitGenerator.INDEX_FILE).toFile().isFile()) {
+            throw new IllegalArgumentException("No HTML template file exists here: " +
+                                               htmlSourceDir.resolve(RabbitGenerator.INDEX_FILE));
+        }
+
+        int port = DEFAULT_PORT;
+        int threadCount = Runtime.getRuntime().availableProcessors() * 2;
+        long refreshPeriodSeconds = DEFAULT_REFRESH_PERIOD_SECONDS;
+        ThumbnailEncoder thumbnailEncoder = ThumbnailEncoder.fromName(RabbitGenerator.DEFAULT_THUMBNAIL_FORMAT);
+        for (int i = ARG_COUNT; i < args.length; i++) {
+            if (args[i].startsWith(PORT_OPTION)) {
+                port = Integer.parseInt(args[i].substring(PORT_OPTION.length()));
+            } else if (args[i].startsWith(THREADS_OPTION)) {
+                threadCount = Integer.parseInt(args[i].substring(THREADS_OPTION.length()));
+            } else if (args[i].startsWith(REFRESH_PERIOD_OPTION)) {
+                refreshPeriodSeconds = Long.parseLong(args[i].substring(REFRESH_PERIOD_OPTION.length()));
+            } else if (args[i].startsWith(THUMBNAIL_FORMAT_OPTION)) {
+                thumbnailEncoder = ThumbnailEncoder.fromName(args[i].substring(THUMBNAIL_FORMAT_OPTION.length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        // The diary is refreshed only in the background so that no request waits for the file system
+        final ImageDayCache cache = new ImageDayCache(RabbitGenerator.IMAGE_DAY_CACHE_BUDGET);
+        final AsyncImageDiary rabbitDiary = AsyncImageDiary.withOwnThread(new LocalImageDiary(new File[]{diaryDir},
+                RabbitGenerator::readPngImage, RabbitGenerator::readTextFile, LocalImageDiaryOptions.builder()
+                .imageDataMode(ImageDataMode.ORIGINAL_FILE)
+                .refreshMode(RefreshMode.MANUAL)
+                .cache(cache)
+                .thumbnailEncoder(thumbnailEncoder)
+                .build()), refreshPeriodSeconds, TimeUnit.SECONDS);
+        System.out.println("Loaded " + rabbitDiary.getDaysReversedAsync().join().size() + " rabbit days");
+
+        final RabbitServer server =
+                new RabbitServer(rabbitDiary, htmlSourceDir, new InetSocketAddress(port), threadCount);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            try {
+                rabbitDiary.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        server.start();
+        System.out.printf("Serving the rabbit diary at http://localhost:%d/ with %d threads%n", server.getPort(),
+                threadCount);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return The port which the server is listening on, which is useful if it has been bound to any free port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            // The connection is closed instead of being kept alive if the request has not been read to its end by the
+            // time the response is finished, which is right away if the response has no body
+            exchange.getRequestBody().close();
+            final String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendEmpty(exchange, 405);
+                return;
+            }
+            route(exchange, exchange.getRequestURI().getPath());
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("Failed to handle a request for " + exchange.getRequestURI());
+            e.printStackTrace();
+            if (exchange.getResponseCode() == -1) {
+                sendEmpty(exchange, 500);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(final HttpExchange exchange, final String path) throws IOException {
+        if (path.equals("/") || path.equals("/" + RabbitGenerator.INDEX_FILE)) {
+            sendPage(exchange, null);
+            return;
+        }
+        final Matcher monthMatcher = MONTH_PATH_PATTERN.matcher(path);
+        if (monthMatcher.matches()) {
+            if (monthMatcher.group(2) == null) {
+                // The links in the page are relative to its directory
+                exchange.getResponseHeaders().set("Location", path + "/");
+                sendEmpty(exchange, 301);
+            } else {
+                sendPage(exchange, monthMatcher.group(1));
+            }
+            return;
+        }
+        final Matcher diaryFileMatcher = DIARY_FILE_PATH_PATTERN.matcher(path);
+        if (diaryFileMatcher.matches()) {
+            sendDiaryFile(exchange, diaryFileMatcher.group(1), diaryFileMatcher.group(2));
+            return;
+        }
+        sendTemplateFile(exchange, path);
+    }
+
+    private void sendPage(final HttpExchange exchange, final @Nullable String month) throws IOException {
+        final RabbitPages.IndexPage page = pages.getIndexPage(month);
+        if (month != null && !page.hasDays()) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        final String signature = page.getSignature();
+        final String key = month == null ? "" : month;
+        @Nullable RenderedPage rendered = renderedPages.get(key);
+        if (rendered == null || !rendered.signature.equals(signature)) {
+            rendered = RenderedPage.render(page, signature);
+            renderedPages.put(key, rendered);
+        }
+
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("Vary", "Accept-Encoding");
+        if (acceptsGzip(exchange.getRequestHeaders())) {
+            headers.set("Content-Encoding", "gzip");
+            send(exchange, "\"" + signature + "-gzip\"", PAGE_CACHE_CONTROL, CONTENT_TYPES.get("html"),
+                    rendered.gzippedContent);
+        } else {
+            send(exchange, "\"" + signature + "\"", PAGE_CACHE_CONTROL, CONTENT_TYPES.get("html"), rendered.content);
+        }
+    }
+
+    private void sendDiaryFile(final HttpExchange exchange, final String date, final String fileName)
+            throws IOException {
+        final @Nullable ImageDay day = rabbitDiary.getDay(date);
+        if (day == null) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        if (fileName.equals(day.getThumbnailFileName())) {
+            sendThumbnail(exchange, day, getContentType(fileName));
+            return;
+        }
+        final Matcher imageMatcher = IMAGE_NAME_PATTERN.matcher(fileName);
+        if (imageMatcher.matches() && imageMatcher.group(1).equals(date)) {
+            final int hour = Integer.parseInt(imageMatcher.group(2));
+            final long lastModified = hour < 24 ? day.getImageLastModified(hour) : 0L;
+            if (lastModified == 0L) {
+                sendEmpty(exchange, 404);
+                return;
+            }
+            final String etag = "\"" + date + "-" + hour + "-" + Long.toHexString(lastModified) + "\"";
+            if (isNotModified(exchange, etag, FILE_CACHE_CONTROL)) {
+                return;
+            }
+            try (final @Nullable DiaryFile imageFile = day.openImageFile(hour)) {
+                if (imageFile == null) {
+                    sendEmpty(exchange, 404);
+                    return;
+                }
+                // The file may have been modified since the day was last refreshed
+                final String fileEtag = "\"" + date + "-" + hour + "-" + Long.toHexString(imageFile.getLastModified()) +
+                        "\"";
+                sendRanges(exchange, fileEtag, CONTENT_TYPES.get("png"), imageFile.getSize(), imageFile::transferTo);
+            }
+            return;
+        }
+        final Matcher eventMatcher = EVENT_NAME_PATTERN.matcher(fileName);
+        if (eventMatcher.matches() && eventMatcher.group(1).equals(date)) {
+            final int hour = Integer.parseInt(eventMatcher.group(2));
+            final @Nullable String event = hour < 24 ? day.getEvent(hour) : null;
+            if (event == null) {
+                sendEmpty(exchange, 404);
+                return;
+            }
+            final byte[] content = event.getBytes(StandardCharsets.UTF_8);
+            send(exchange, "\"" + hash(content) + "\"", FILE_CACHE_CONTROL, CONTENT_TYPES.get("txt"), content);
+            return;
+        }
+        sendEmpty(exchange, 404);
+    }
+
+    private void sendThumbnail(final HttpExchange exchange, final ImageDay day, final String contentType)
+            throws IOException {
+        try (final @Nullable DiaryFile thumbnailFile = day.openThumbnailFile()) {
+            if (thumbnailFile != null) {
+                final String etag = "\"" + day.getDate() + "-" + Long.toHexString(thumbnailFile.getLastModified()) +
+                        "-" + Long.toHexString(thumbnailFile.getSize()) + "\"";
+                sendRanges(exchange, etag, contentType, thumbnailFile.getSize(), thumbnailFile::transferTo);
+                return;
+            }
+        }
+        // The thumbnail has changed since it was last saved
+        final byte @Nullable [] thumbnailData = day.getThumbnailData();
+        if (thumbnailData == null) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        sendRanges(exchange, getThumbnailTag(day, thumbnailData), contentType, thumbnailData.length,
+                (position, count, target) -> {
+                    final ByteBuffer buffer = ByteBuffer.wrap(thumbnailData, (int) position, (int) count);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                });
+    }
+
+    private String getThumbnailTag(final ImageDay day, final byte[] thumbnailData) {
+        final @Nullable ContentTag tag = thumbnailTags.get(day.getDate());
+        if (tag != null && tag.content.get() == thumbnailData) {
+            return tag.value;
+        }
+        final ContentTag newTag =
+                new ContentTag(new WeakReference<>(thumbnailData), "\"" + hash(thumbnailData) + "\"");
+        thumbnailTags.put(day.getDate(), newTag);
+        return newTag.value;
+    }
+
+    /**
+     * Sends one of the files next to the template, except for the template itself.
+     */
+    private void sendTemplateFile(final HttpExchange exchange, final String path) throws IOException {
+        final Path file = htmlSourceDir.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(htmlSourceDir) || file.equals(htmlSourceDir.resolve(RabbitGenerator.INDEX_FILE)) ||
+                file.getFileName().toString().endsWith("~") || !Files.isRegularFile(file)) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        final String etag = "\"" + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "-" +
+                Long.toHexString(attributes.size()) + "\"";
+        if (isNotModified(exchange, etag, FILE_CACHE_CONTROL)) {
+            return;
+        }
+        setHeaders(exchange, etag, FILE_CACHE_CONTROL, getContentType(file.getFileName().toString()));
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, attributes.size());
+        try (final OutputStream body = exchange.getResponseBody()) {
+            Files.copy(file, body);
+        }
+    }
+
+    private static void send(final HttpExchange exchange, final String etag, final String cacheControl,
+                             final String contentType, final byte[] content) throws IOException {
+        if (isNotModified(exchange, etag, cacheControl)) {
+            return;
+        }
+        setHeaders(exchange, etag, cacheControl, contentType);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, content.length);
+        try (final OutputStream body = exchange.getResponseBody()) {
+            body.write(content);
+        }
+    }
+
+    /**
+     * Sends the content, or only the part of it which has been requested with a "Range" header.
+     */
+    private static void sendRanges(final HttpExchange exchange, final String etag, final String contentType,
+                                   final long size, final ContentWriter writer) throws IOException {
+        if (isNotModified(exchange, etag, FILE_CACHE_CONTROL)) {
+            return;
+        }
+        setHeaders(exchange, etag, FILE_CACHE_CONTROL, contentType);
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes");
+        final long @Nullable [] range = getRequestedRange(exchange.getRequestHeaders(), etag, size);
+        if (range != null && range.length == 0) {
+            headers.set("Content-Range", "bytes */" + size);
+            sendEmpty(exchange, 416);
+            return;
+        }
+        final long position = range == null ? 0L : range[0];
+        final long count = range == null ? size : range[1] - range[0];
+        if (range != null) {
+            headers.set("Content-Range", "bytes " + position + "-" + (position + count - 1) + "/" + size);
+        }
+        final int status = range == null ? 200 : 206;
+        if (exchange.getRequestMethod().equals("HEAD") || count == 0L) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, count);
+        try (final WritableByteChannel body = Channels.newChannel(exchange.getResponseBody())) {
+            writer.write(position, count, body);
+        }
+    }
+
+    /**
+     * @return The range requested with a "Range" header as its start and its exclusive end, null if the whole content
+     * should be sent, or an empty array if the range is outside of the content. Only a single range is supported; the
+     * whole content is sent for more than one, as it is for an "If-Range" header which does not match the ETag.
+     */
+    private static long @Nullable [] getRequestedRange(final Headers requestHeaders, final String etag,
+                                                       final long size) {
+        final @Nullable String range = requestHeaders.getFirst("Range");
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final @Nullable String ifRange = requestHeaders.getFirst("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dashIndex = spec.indexOf('-');
+        if (dashIndex < 0) {
+            return null;
+        }
+        try {
+            if (dashIndex == 0) {
+                // The last N bytes
+                final long suffixLength = Long.parseLong(spec.substring(1));
+                return suffixLength <= 0L || size == 0L ? new long[0] :
+                        new long[]{Math.max(0L, size - suffixLength), size};
+            }
+            final long start = Long.parseLong(spec.substring(0, dashIndex));
+            final long end = dashIndex == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dashIndex + 1));
+            if (start >= size) {
+                return new long[0];
+            }
+            return end < start ? null : new long[]{start, Math.min(end, size - 1) + 1};
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void sendEmpty(final HttpExchange exchange, final int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void setHeaders(final HttpExchange exchange, final String etag, final String cacheControl,
+                                   final String contentType) {
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", etag);
+        headers.set("Cache-Control", cacheControl);
+        headers.set("Content-Type", contentType);
+    }
+
+    /**
+     * Responds with "304 Not Modified" if the client already has the current version of the resource.
+     *
+     * @return Whether the response has been sent.
+     */
+    private static boolean isNotModified(final HttpExchange exchange, final String etag, final String cacheControl)
+            throws IOException {
+        final List<String> values = exchange.getRequestHeaders().get("If-None-Match");
+        if (values == null) {
+            return false;
+        }
+        for (final String value : values) {
+            for (final String tag : value.split(",")) {
+                final String trimmedTag = tag.trim();
+                // If-None-Match uses the weak comparison, so a weak version of the tag matches as well
+                if (trimmedTag.equals("*") || trimmedTag.equals(etag) || trimmedTag.equals("W/" + etag)) {
+                    final Headers headers = exchange.getResponseHeaders();
+                    headers.set("ETag", etag);
+                    headers.set("Cache-Control", cacheControl);
+                    exchange.sendResponseHeaders(304, -1);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(final Headers requestHeaders) {
+        final List<String> values = requestHeaders.get("Accept-Encoding");
+        if (values == null) {
+            return false;
+        }
+        for (final String value : values) {
+            for (final String coding : value.split(",")) {
+                final String[] parameters = coding.split(";");
+                if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+                    return parameters.length < 2 || !isZeroQuality(parameters[1].trim());
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZeroQuality(final String parameter) {
+        if (!parameter.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(parameter.substring(2)) == 0.0;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String getContentType(final String fileName) {
+        final String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    private static String hash(final byte[] content) {
+        final MessageDigest digest = GenerationManifest.createDigest();
+        return GenerationManifest.toHex(digest.digest(content));
+    }
+
+    /**
+     * A page rendered as it was when it had the signature, both as it is and compressed with gzip.
+     */
+    @RequiredArgsConstructor
+    private static class RenderedPage {
+
+        private final String signature;
+
+        private final byte[] content;
+
+        private final byte[] gzippedContent;
+
+        static RenderedPage render(final RabbitPages.IndexPage page, final String signature) throws IOException {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (final Writer writer = new OutputStreamWriter(content, StandardCharsets.UTF_8)) {
+                page.render(writer);
+            }
+            final byte[] contentBytes = content.toByteArray();
+            return new RenderedPage(signature, contentBytes,
+                    PrecompressedFiles.gzip(contentBytes, Deflater.BEST_COMPRESSION));
+        }
+    }
+
+    /**
+     * Writes a part of the content of a response.
+     */
+    @FunctionalInterface
+    private interface ContentWriter {
+
+        void write(long position, long count, WritableByteChannel target) throws IOException;
+    }
+
+    @RequiredArgsConstructor
+    private static class ContentTag {
+
+        private final WeakReference<byte[]> content;
+
+        private final String value;
+    }
+}
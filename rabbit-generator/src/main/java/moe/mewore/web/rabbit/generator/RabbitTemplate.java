@@ -0,0 +1,334 @@
+package moe.mewore.web.rabbit.generator;
+
+import lombok.RequiredArgsConstructor;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.LocalImageDay;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The HTML template of the rabbit pages, split once into literal text, placeholders and the blocks which are repeated
+ * for every day, so that a page can be written in a single pass.
+ */
+@RequiredArgsConstructor
+class RabbitTemplate {
+
+    static final String RABBIT_DAY_MARKER = "<!--RABBIT DAY-->";
+
+    enum Placeholder {
+        PATH_TO_RABBIT_ROOT("[PATH_TO_RABBIT_ROOT]"),
+        PREVIOUS_MONTH_NAME("[PREVIOUS_MONTH_NAME]"),
+        CURRENT_MONTH_NAME("[CURRENT_MONTH_NAME]"),
+        NEXT_MONTH_NAME("[NEXT_MONTH_NAME]"),
+        PREVIOUS_RABBITS_COUNT("[PREVIOUS_RABBITS_COUNT]"),
+        CURRENT_RABBITS_COUNT("[CURRENT_RABBITS_COUNT]"),
+        NEXT_RABBITS_COUNT("[NEXT_RABBITS_COUNT]"),
+        PREVIOUS_RABBITS_TAG("PREVIOUS_RABBITS_TAG"),
+        NEXT_RABBITS_TAG("NEXT_RABBITS_TAG"),
+        PREVIOUS_RABBITS_MONTH("[PREVIOUS_RABBITS_MONTH]"),
+        NEXT_RABBITS_MONTH("[NEXT_RABBITS_MONTH]"),
+        // The rest can be used only in a rabbit day block
+        DAY_NAME("[NAME]"),
+        THUMBNAIL_URL("[THUMBNAIL_URL]"),
+        THUMBNAIL_POSITION("[THUMBNAIL_POSITION]"),
+        LINKS("[LINKS]");
+
+        private final String token;
+
+        Placeholder(final String token) {
+            this.token = token;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        boolean isDayPlaceholder() {
+            return compareTo(DAY_NAME) >= 0;
+        }
+    }
+
+    private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile(Arrays.stream(Placeholder.values())
+            .map(placeholder -> placeholder.token)
+            .sorted(Comparator.comparingInt(String::length).reversed())
+            .map(Pattern::quote)
+            .collect(Collectors.joining("|")));
+
+    /**
+     * Extra attributes of the link to an image of a day, e.g. the URLs of its smaller versions.
+     */
+    @FunctionalInterface
+    interface ImageLinkAttributes {
+
+        ImageLinkAttributes NONE = (date, hour) -> "";
+
+        /**
+         * @return The attributes, each preceded by a space, or an empty string if there are none.
+         */
+        String get(String date, int hour);
+    }
+
+    /**
+     * The URLs of the files of the days which are elsewhere than in the directories of the days.
+     */
+    interface DayFileUrls {
+
+        DayFileUrls NONE = new DayFileUrls() {
+            @Override
+            public @Nullable String getThumbnailUrl(final String date) {
+                return null;
+            }
+
+            @Override
+            public @Nullable String getImageUrl(final String date, final int hour) {
+                return null;
+            }
+        };
+
+        /**
+         * @return The URL of the thumbnail of the day, or null if it is in the directory of the day.
+         */
+        @Nullable String getThumbnailUrl(String date);
+
+        /**
+         * @return The URL of the image, or null if it is in the directory of its day.
+         */
+        @Nullable String getImageUrl(String date, int hour);
+    }
+
+    private final List<Segment> segments;
+
+    /**
+     * Splits the template into segments. The lines which end with {@link #RABBIT_DAY_MARKER} start and end a block
+     * which is repeated for every day; they themselves are not a part of the page.
+     */
+    static RabbitTemplate compile(final List<String> lines) {
+        final List<Segment> pageSegments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        @Nullable List<Segment> daySegments = null;
+        for (final String line : lines) {
+            final List<Segment> currentSegments = daySegments == null ? pageSegments : daySegments;
+            if (line.endsWith(RABBIT_DAY_MARKER)) {
+                flushLiteral(literal, currentSegments);
+                if (daySegments == null) {
+                    daySegments = new ArrayList<>();
+                } else {
+                    pageSegments.add(Segment.days(daySegments));
+                    daySegments = null;
+                }
+                continue;
+            }
+            final Matcher matcher = PLACEHOLDER_PATTERN.matcher(line);
+            int start = 0;
+            while (matcher.find()) {
+                final Placeholder placeholder = getPlaceholder(matcher.group());
+                if (placeholder.isDayPlaceholder() && daySegments == null) {
+                    continue;
+                }
+                literal.append(line, start, matcher.start());
+                flushLiteral(literal, currentSegments);
+                currentSegments.add(Segment.placeholder(placeholder));
+                start = matcher.end();
+            }
+            literal.append(line, start, line.length()).append('\n');
+        }
+        flushLiteral(literal, daySegments == null ? pageSegments : daySegments);
+        if (daySegments != null) {
+            // An unterminated block is still repeated for every day
+            pageSegments.add(Segment.days(daySegments));
+        }
+        return new RabbitTemplate(Collections.unmodifiableList(pageSegments));
+    }
+
+    private static Placeholder getPlaceholder(final String token) {
+        for (final Placeholder placeholder : Placeholder.values()) {
+            if (placeholder.token.equals(token)) {
+                return placeholder;
+            }
+        }
+        throw new IllegalArgumentException("Unknown placeholder: " + token);
+    }
+
+    private static void flushLiteral(final StringBuilder literal, final List<Segment> segments) {
+        if (literal.length() > 0) {
+            segments.add(Segment.literal(literal.toString()));
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * Writes a page with the given values of the placeholders, repeating the rabbit day blocks for every day.
+     */
+    void render(final Writer writer, final Map<Placeholder, String> values, final List<ImageDay> days,
+                final String dayUrlPrefix) throws IOException {
+        render(writer, values, days, dayUrlPrefix, null, ImageLinkAttributes.NONE, DayFileUrls.NONE);
+    }
+
+    /**
+     * @param thumbnailAtlasUrl   The URL of an image with the thumbnails of the days in rows in the same order, or
+     *                            null if each day should use its own thumbnail.
+     * @param imageLinkAttributes The extra attributes of the links to the images.
+     * @param dayFileUrls         The URLs of the thumbnails and the images which are not in the directories of their
+     *                            days.
+     */
+    void render(final Writer writer, final Map<Placeholder, String> values, final List<ImageDay> days,
+                final String dayUrlPrefix, final @Nullable String thumbnailAtlasUrl,
+                final ImageLinkAttributes imageLinkAttributes, final DayFileUrls dayFileUrls) throws IOException {
+        for (final Segment segment : segments) {
+            switch (segment.type) {
+                case LITERAL:
+                    writer.write(segment.text);
+                    break;
+                case PLACEHOLDER:
+                    writer.write(values.getOrDefault(segment.placeholder, segment.placeholder.token));
+                    break;
+                case DAYS:
+                    for (int i = 0; i < days.size(); i++) {
+                        final ImageDay day = days.get(i);
+                        renderDay(writer, segment.children, day, dayUrlPrefix + day.getDate(), thumbnailAtlasUrl,
+                                i, imageLinkAttributes, dayFileUrls);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown segment type: " + segment.type);
+            }
+        }
+    }
+
+    private static void renderDay(final Writer writer, final List<Segment> daySegments, final ImageDay day,
+                                  final String dayUrl, final @Nullable String thumbnailAtlasUrl,
+                                  final int dayIndex, final ImageLinkAttributes imageLinkAttributes,
+                                  final DayFileUrls dayFileUrls) throws IOException {
+        for (final Segment segment : daySegments) {
+            if (segment.type == SegmentType.LITERAL) {
+                writer.write(segment.text);
+                continue;
+            }
+            switch (segment.placeholder) {
+                case DAY_NAME:
+                    writer.write(day.getDate());
+                    break;
+                case THUMBNAIL_URL:
+                    if (thumbnailAtlasUrl != null) {
+                        writer.write(thumbnailAtlasUrl);
+                        break;
+                    }
+                    final @Nullable String thumbnailUrl = dayFileUrls.getThumbnailUrl(day.getDate());
+                    if (thumbnailUrl != null) {
+                        writer.write(thumbnailUrl);
+                        break;
+                    }
+                    writer.write(dayUrl);
+                    writer.write('/');
+                    writer.write(day.getThumbnailFileName());
+                    break;
+                case THUMBNAIL_POSITION:
+                    writer.write(thumbnailAtlasUrl == null || dayIndex == 0 ? "0 0" :
+                            "0 -" + LocalImageDay.THUMBNAIL_HEIGHT * dayIndex + "px");
+                    break;
+                case LINKS:
+                    writeLinks(writer, day, dayUrl, imageLinkAttributes, dayFileUrls);
+                    break;
+                default:
+                    writer.write(segment.placeholder.token);
+            }
+        }
+    }
+
+    private static void writeLinks(final Writer writer, final ImageDay day, final String dayUrl,
+                                   final ImageLinkAttributes imageLinkAttributes, final DayFileUrls dayFileUrls)
+            throws IOException {
+        final int imageMask = day.getImageMask();
+        final String date = day.getDate();
+        for (int hour = 0; hour < 24; hour++) {
+            final @Nullable String event = day.getEvent(hour);
+            final boolean hasImage = ((imageMask >> hour) & 1) != 0;
+            if (event == null && !hasImage) {
+                writer.write("<div class=\"inactive\"></div>");
+                continue;
+            }
+            writer.write("<div>");
+            if (event != null) {
+                // A hack for making sure that the Note link is centered between two image links because links aren't
+                // allowed to be inside links for whatever reason.
+                if (hasImage) {
+                    writeImageLink(writer, dayUrl, date, hour, imageLinkAttributes, dayFileUrls);
+                }
+                writer.write("<a href=\"");
+                writer.write(dayUrl);
+                writer.write("/event-");
+                writer.write(date);
+                writer.write('-');
+                writer.write(Integer.toString(hour));
+                writer.write(".txt\" class=\"event-link\" title=\"");
+                writer.write(event.replace("\"", "&quot;"));
+                writer.write("\">Note</a>");
+            }
+            if (hasImage) {
+                writeImageLink(writer, dayUrl, date, hour, imageLinkAttributes, dayFileUrls);
+            }
+            writer.write("</div>");
+        }
+    }
+
+    private static void writeImageLink(final Writer writer, final String dayUrl, final String date, final int hour,
+                                       final ImageLinkAttributes imageLinkAttributes,
+                                       final DayFileUrls dayFileUrls) throws IOException {
+        writer.write("<a href=\"");
+        final @Nullable String imageUrl = dayFileUrls.getImageUrl(date, hour);
+        if (imageUrl != null) {
+            writer.write(imageUrl);
+        } else {
+            writer.write(dayUrl);
+            writer.write("/rabbit-");
+            writer.write(date);
+            writer.write('-');
+            writer.write(Integer.toString(hour));
+            writer.write(".png");
+        }
+        writer.write('"');
+        writer.write(imageLinkAttributes.get(date, hour));
+        writer.write("></a>");
+    }
+
+    private enum SegmentType {
+        LITERAL,
+        PLACEHOLDER,
+        DAYS,
+    }
+
+    @RequiredArgsConstructor
+    private static class Segment {
+
+        private final SegmentType type;
+
+        private final String text;
+
+        private final @Nullable Placeholder placeholder;
+
+        private final List<Segment> children;
+
+        static Segment literal(final String text) {
+            return new Segment(SegmentType.LITERAL, text, null, Collections.emptyList());
+        }
+
+        static Segment placeholder(final Placeholder placeholder) {
+            return new Segment(SegmentType.PLACEHOLDER, "", placeholder, Collections.emptyList());
+        }
+
+        static Segment days(final List<Segment> children) {
+            return new Segment(SegmentType.DAYS, "", null, Collections.unmodifiableList(children));
+        }
+    }
+}
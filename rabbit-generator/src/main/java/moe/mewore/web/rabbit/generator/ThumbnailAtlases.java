@@ -0,0 +1,138 @@
+package moe.mewore.web.rabbit.generator;
+
+import moe.mewore.imagediary.DiaryFile;
+import moe.mewore.imagediary.ImageDay;
+import moe.mewore.imagediary.LocalImageDay;
+import moe.mewore.imagediary.ThumbnailEncoder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the thumbnails of all days of a month into a single image in the directory of the month, one row per day in
+ * the order in which they are on the page, so that a month page needs one thumbnail request instead of one for each
+ * day. An atlas is written again only if the thumbnail of any of its days has changed.
+ */
+class ThumbnailAtlases {
+
+    private static final String FILE_NAME = "thumbnails";
+
+    /**
+     * The number of hexadecimal digits of the signature of an atlas which are used as its version in its URL.
+     */
+    private static final int VERSION_LENGTH = 12;
+
+    private final Path directory;
+
+    private final ThumbnailEncoder encoder;
+
+    private final GenerationManifest previousManifest;
+
+    private final GenerationManifest manifest;
+
+    private final Map<String, String> urlsByMonth = new ConcurrentHashMap<>();
+
+    final AtomicInteger writtenCount = new AtomicInteger();
+
+    final AtomicInteger skippedCount = new AtomicInteger();
+
+    /**
+     * @param directory The directory with the directories of the months.
+     */
+    ThumbnailAtlases(final Path directory, final ThumbnailEncoder encoder, final GenerationManifest previousManifest,
+                     final GenerationManifest manifest) {
+        this.directory = directory;
+        this.encoder = encoder;
+        this.previousManifest = previousManifest;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Writes the atlas of the month unless it is up to date already.
+     *
+     * @param days The days of the month in the order in which they are on its page.
+     * @return The URL of the atlas relative to the directory of the month, with a version which changes along with the
+     * atlas so that browsers do not keep showing an older one.
+     */
+    String update(final String month, final List<ImageDay> days) throws IOException {
+        final @Nullable String existingUrl = urlsByMonth.get(month);
+        if (existingUrl != null) {
+            return existingUrl;
+        }
+        final String fileName = FILE_NAME + "." + encoder.getFileExtension();
+        final String atlasName = month + "/" + fileName;
+        final Path file = directory.resolve(month).resolve(fileName);
+        final String signature = getSignature(days);
+        manifest.putSignature(atlasName, signature);
+        if (signature.equals(previousManifest.getSignature(atlasName)) && Files.isRegularFile(file)) {
+            skippedCount.incrementAndGet();
+        } else {
+            write(file, days);
+            writtenCount.incrementAndGet();
+        }
+        final String url = fileName + "?v=" + signature.substring(0, VERSION_LENGTH);
+        urlsByMonth.put(month, url);
+        return url;
+    }
+
+    /**
+     * @return A hash of the thumbnails of the days, which uses the sizes and modification times of their thumbnail
+     * files when they are up to date and their contents otherwise.
+     */
+    private String getSignature(final List<ImageDay> days) throws IOException {
+        final MessageDigest digest = GenerationManifest.createDigest();
+        RabbitPages.update(digest, encoder.getSignature());
+        for (final ImageDay day : days) {
+            RabbitPages.update(digest, day.getDate());
+            try (final @Nullable DiaryFile thumbnailFile = day.openThumbnailFile()) {
+                if (thumbnailFile != null) {
+                    RabbitPages.update(digest, thumbnailFile.getSize() + ":" + thumbnailFile.getLastModified());
+                    continue;
+                }
+            }
+            final byte[] thumbnailHash = GenerationManifest.createDigest().digest(day.getThumbnailData());
+            RabbitPages.update(digest, GenerationManifest.toHex(thumbnailHash));
+        }
+        return GenerationManifest.toHex(digest.digest());
+    }
+
+    private void write(final Path file, final List<ImageDay> days) throws IOException {
+        final int dayWidth = LocalImageDay.THUMBNAIL_WIDTH * 24;
+        final BufferedImage atlas = new BufferedImage(dayWidth,
+                LocalImageDay.THUMBNAIL_HEIGHT * Math.max(1, days.size()), BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = atlas.createGraphics();
+        try {
+            for (int i = 0; i < days.size(); i++) {
+                final @Nullable BufferedImage thumbnail =
+                        ImageIO.read(new ByteArrayInputStream(days.get(i).getThumbnailData()));
+                if (thumbnail == null) {
+                    System.err.println("Could not decode the thumbnail of day " + days.get(i).getDate() +
+                                       " for the thumbnail atlas " + file);
+                    continue;
+                }
+                graphics.drawImage(thumbnail, 0, LocalImageDay.THUMBNAIL_HEIGHT * i, null);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        final byte @Nullable [] atlasData = encoder.encode(atlas);
+        if (atlasData == null) {
+            throw new IOException("There is no writer for the format of the thumbnail atlas " + file);
+        }
+        final Path tmpFile = file.resolveSibling("." + file.getFileName() + ".tmp");
+        Files.write(tmpFile, atlasData);
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
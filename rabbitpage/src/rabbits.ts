@@ -1 +1,92 @@
-console.log("rabbits");
+/**
+ * Shows a drawing on top of the page when its link is clicked, from the smallest of its versions which is large enough
+ * for the window. The versions are listed in the "data-srcset-[extension]" attributes of the link, in the order in
+ * which the formats should be preferred, and the size of the drawing is in its "data-width" and "data-height"
+ * attributes. Without them or without this script, the link simply opens the drawing.
+ */
+
+const SRCSET_ATTRIBUTE_PREFIX = "data-srcset-";
+
+const VIEWER_ID = "rabbit-viewer";
+
+const MIME_TYPES: Record<string, string> = {
+    png: "image/png",
+    jpg: "image/jpeg",
+};
+
+/**
+ * @returns The CSS width of a drawing which is as large as possible while it fits in the window but no larger than it
+ * actually is.
+ */
+function getShownWidth(width: number, height: number, windowWidth: number, windowHeight: number): number {
+    return Math.max(1, Math.floor(width * Math.min(1, windowWidth / width, windowHeight / height)));
+}
+
+function createPicture(link: HTMLAnchorElement, shownWidth: number): HTMLPictureElement {
+    const sizes = `${shownWidth}px`;
+    const picture = document.createElement("picture");
+    for (const attribute of Array.from(link.attributes)) {
+        const type = attribute.name.startsWith(SRCSET_ATTRIBUTE_PREFIX)
+            ? MIME_TYPES[attribute.name.substring(SRCSET_ATTRIBUTE_PREFIX.length)]
+            : undefined;
+        if (!type) {
+            continue;
+        }
+        const source = document.createElement("source");
+        source.type = type;
+        source.srcset = attribute.value;
+        source.sizes = sizes;
+        picture.appendChild(source);
+    }
+    const image = document.createElement("img");
+    image.alt = "A rabbit";
+    image.style.width = sizes;
+    // The image is in the picture before its source is set so that it is loaded from one of the sources instead
+    picture.appendChild(image);
+    image.sizes = sizes;
+    image.src = link.href;
+    return picture;
+}
+
+function closeViewer(): void {
+    document.getElementById(VIEWER_ID)?.remove();
+    document.removeEventListener("keydown", onViewerKeyDown);
+}
+
+function onViewerKeyDown(event: KeyboardEvent): void {
+    if (event.key === "Escape") {
+        closeViewer();
+    }
+}
+
+function showDrawing(link: HTMLAnchorElement): void {
+    closeViewer();
+    const width = Number(link.dataset.width);
+    const height = Number(link.dataset.height);
+    const viewer = document.createElement("div");
+    viewer.id = VIEWER_ID;
+    viewer.appendChild(createPicture(link, getShownWidth(width, height, window.innerWidth, window.innerHeight)));
+
+    const originalLink = document.createElement("a");
+    originalLink.href = link.href;
+    originalLink.textContent = "Original";
+    originalLink.addEventListener("click", (event) => event.stopPropagation());
+    viewer.appendChild(originalLink);
+
+    viewer.addEventListener("click", closeViewer);
+    document.addEventListener("keydown", onViewerKeyDown);
+    document.body.appendChild(viewer);
+}
+
+document.addEventListener("click", (event) => {
+    // Opening the link in another tab or window works as usual
+    if (event.button !== 0 || event.ctrlKey || event.metaKey || event.shiftKey || event.altKey) {
+        return;
+    }
+    const link = event.target instanceof Element ? event.target.closest("a[data-width][data-height]") : null;
+    if (!(link instanceof HTMLAnchorElement)) {
+        return;
+    }
+    event.preventDefault();
+    showDrawing(link);
+});
@@ -27,3 +27,4 @@ include("rootpage")
 include("rabbit-generator")
 include("rabbitpage")
 include("dialogue-page")
+include("benchmarks")